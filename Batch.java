@@ -0,0 +1,223 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Writes one script into several ROMs in one run, such as regional dumps and
+// revisions of the game that share its layout. The script is read, and its
+// texts and graphics are encoded, only once. Then every ROM is written on its
+// own thread, each with its own free space, and what happened to each ROM is
+// printed when all of them are done.
+// Line breaks are chosen against the original strings of the first ROM: a text
+// that doesn't fit where it was in another ROM is relocated there. There is no
+// build cache, since entries are only encoded once anyway.
+public class Batch implements EntryHandler {
+  // Entries in document order: futures of an EncodedText or a
+  // GraphicPipeline.Job, or the start and end of a <free>. end() replaces
+  // the futures with what they computed.
+  ArrayList<Object> entries = new ArrayList<Object>();
+  // Only used to reject graphics that overlap.
+  GraphicPipeline graphics = new GraphicPipeline();
+  int texts, images;
+
+// -------------------------------------------------------------------
+
+// Reads script filename, and writes it into every ROM in roms as output says.
+  static void run (String filename, String output, String[] roms) throws XMLError {
+    long start = System.nanoTime();
+    Metrics.record();
+    HashSet<String> names = new HashSet<String>();
+    for (String rom : roms)
+      if (!names.add(new File(rom).toPath().toAbsolutePath().normalize().toString()))
+        throw new XMLError ("ROM <" + rom + "> is given twice");
+
+    // Every ROM is mapped and indexed in parallel.
+    final Target[] targets = new Target[roms.length];
+    final ByteArrayOutputStream[] logs = new ByteArrayOutputStream[roms.length];
+    ArrayList<Callable<Void>> open = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < roms.length; i++) {
+      final int n = i;
+      final String rom = roms[i];
+      logs[n] = new ByteArrayOutputStream();
+      open.add(new Callable<Void>() {
+        public Void call () {
+          PrintStream out = new PrintStream(logs[n], true);
+          try {
+            targets[n] = new Target(rom, true, out);
+          } catch (XMLError xe) {
+            out.println(xe.getMessage());
+          }
+          return null;
+        }
+      });
+    }
+    invokeAll(open);
+
+    Script.target = null;
+    for (Target t : targets)
+      if (t != null && Script.target == null)
+        Script.target = t;
+    if (Script.target == null) {
+      print(logs);
+      throw new XMLError ("None of the ROMs could be opened");
+    }
+
+    // Encoding only reads the first ROM.
+    Palette.clear();
+    Batch batch = new Batch();
+    ScriptReader.read(filename, batch);
+    System.out.println ("Encoded " + batch.texts + " texts and " + batch.images + " graphics in " +
+                        (System.nanoTime() - start) / 1000000 + " ms.");
+
+    ArrayList<Callable<Void>> apply = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < roms.length; i++) {
+      final Target t = targets[i];
+      if (t == null)
+        continue;
+      apply.add(new Callable<Void>() {
+        public Void call () {
+          try {
+            batch.apply(t, output);
+          } catch (XMLError xe) {
+            t.out.println(xe.getMessage());
+            t.game = null;
+          }
+          return null;
+        }
+      });
+    }
+    invokeAll(apply);
+    print(logs);
+
+    int done = 0;
+    for (Target t : targets)
+      if (t != null && t.game != null)
+        done++;
+    System.out.println ("Wrote " + done + " of " + roms.length + " ROMs in " +
+                        (System.nanoTime() - start) / 1000000 + " ms.");
+    Metrics.dump(Script.recordingName(filename));
+  }
+
+// -------------------------------------------------------------------
+
+// Runs every task on the fork-join pool, and waits for all of them.
+  static void invokeAll (ArrayList<Callable<Void>> tasks) throws XMLError {
+    for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks))
+      try {
+        f.get();
+      } catch (InterruptedException ie) {
+        throw new XMLError ("Interrupted while writing ROMs");
+      } catch (ExecutionException ee) {
+        throw TextPipeline.unwrap(ee);
+      }
+  }
+
+// -------------------------------------------------------------------
+
+// Prints what happened to each ROM, one after another.
+  static void print (ByteArrayOutputStream[] logs) {
+    for (ByteArrayOutputStream log : logs)
+      System.out.print(log.toString());
+  }
+
+// -------------------------------------------------------------------
+
+// The ROMs are given on the command line instead.
+  public void game (String name) {
+  }
+
+// -------------------------------------------------------------------
+
+// Texts are encoded once, so one table serves every ROM.
+  public void table (String name) throws XMLError {
+    Script.useTable(TableCodec.load(name));
+  }
+
+// -------------------------------------------------------------------
+
+// Measured in the first ROM: every ROM is the same game, with the same font.
+  public void font (FontEntry f) throws XMLError {
+    Script.useFont(FontWidths.read(f, Script.target.gameData));
+  }
+
+// -------------------------------------------------------------------
+
+  public void graphic (final GraphicEntry g) throws XMLError {
+    final GraphicPipeline.Job job = new GraphicPipeline.Job(g);
+    graphics.take(job);
+    entries.add(GraphicPipeline.workers().submit(new Callable<GraphicPipeline.Job>() {
+      public GraphicPipeline.Job call () throws XMLError {
+        job.tiles = Script.encodeGraphic(g, job.codec);
+        return job;
+      }
+    }));
+    images++;
+  }
+
+// -------------------------------------------------------------------
+
+  public void free (int start, int end) {
+    entries.add(new int[]{start, end});
+  }
+
+// -------------------------------------------------------------------
+
+  public void text (final TextEntry t) {
+    entries.add(ForkJoinPool.commonPool().submit(new Callable<EncodedText>() {
+      public EncodedText call () throws XMLError {
+        return Script.encodeText(t);
+      }
+    }));
+    texts++;
+  }
+
+// -------------------------------------------------------------------
+
+  public void unreadable (XMLError xe) throws XMLError {
+    throw xe;
+  }
+
+// -------------------------------------------------------------------
+
+// Waits until every entry is encoded.
+  public void end () throws XMLError {
+    for (int i = 0; i < entries.size(); i++)
+      if (entries.get(i) instanceof Future)
+        try {
+          entries.set(i, ((Future<?>)entries.get(i)).get());
+        } catch (InterruptedException ie) {
+          throw new XMLError ("Interrupted while encoding");
+        } catch (ExecutionException ee) {
+          throw TextPipeline.unwrap(ee);
+        }
+  }
+
+// -------------------------------------------------------------------
+
+// Writes every encoded entry into t, in document order, then relocates what
+// didn't fit and writes the output. Metrics of t only cover this part.
+// Entries are copied, since where they end up is different in each ROM.
+  void apply (Target t, String output) throws XMLError {
+    t.metrics = new Metrics();
+    for (Object entry : entries)
+      if (entry instanceof int[]) {
+        int[] range = (int[])entry;
+        t.freeSpace.add("declared", range[0], range[1]);
+      } else if (entry instanceof GraphicPipeline.Job) {
+        GraphicPipeline.Job job = (GraphicPipeline.Job)entry;
+        if (job.tiles == null)
+          continue;
+        GraphicPipeline.Job copy = new GraphicPipeline.Job(job.g);
+        copy.tiles = job.tiles;
+        copy.slot = job.g.compression != 0 ? Compression.compressedSize(t.gameData, job.g.addr) : job.slot;
+        t.writeGraphic(copy);
+      } else if (entry instanceof EncodedText) {
+        EncodedText e = (EncodedText)entry;
+        EncodedText copy = new EncodedText(e.entry, e.bytes, e.hash, -1);
+        copy.warning = e.warning;
+        t.writeText(copy);
+      }
+    t.placeRelocated();
+    t.writeOutput(output);
+    t.metrics.finish(t.out, t.outputName("metrics.json"));
+  }
+}
@@ -0,0 +1,336 @@
+import java.io.*;
+import java.awt.image.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Times every stage of insertion and extraction against a synthetic ROM, so
+// a change to the hot paths can be measured without the real game. The ROM
+// and script are generated from a fixed seed into a temporary directory: a
+// table of TEXTS pointers to Shift-JIS strings, translations somewhat longer
+// than the originals, so about half of them are relocated, and a sheet of
+// tiles. Each stage runs WARMUP times untimed, then RUNS times timed, and the
+// results are printed and written as JSON for tracking over time.
+// Usage: java Benchmark [results.json]
+public class Benchmark {
+  static final int TEXTS = 3800;
+  static final int WARMUP = 5, RUNS = 10;
+  static final long SEED = 0x4869676fL;
+  static final int ROM_SIZE = 0x800000;
+  static final int TABLE = 0x100000, STRINGS = 0x200000, TILES = 0x400000;
+  // Size of the tile sheet, in tiles.
+  static final int SHEET = 32;
+  static final String[] WORDS = {"go", "stone", "board", "capture", "ko", "atari", "ladder", "net",
+    "territory", "Hikaru", "Sai", "Akira", "move", "black", "white", "the", "a", "is", "to", "your",
+    "turn", "play", "pass", "game", "master", "tesuji", "shape", "eye", "life", "death"};
+
+  // One timed stage: what it runs, and how long each run took.
+  static abstract class Stage {
+    String name;
+    // Operations per run, such as texts or tiles.
+    int ops;
+    long[] nanos = new long[RUNS];
+
+    Stage (String name, int ops) {
+      this.name = name;
+      this.ops = ops;
+    }
+
+    // Untimed work before each run.
+    void setup () throws XMLError {
+    }
+
+    abstract void run () throws XMLError;
+  }
+
+  static Path dir;
+  static String rom, script;
+  static ArrayList<TextEntry> entries = new ArrayList<TextEntry>();
+  // Sink for results, so the JIT can't drop the work.
+  static long sink;
+
+// -------------------------------------------------------------------
+
+// Writes the synthetic ROM and script.
+  static void generate () throws IOException {
+    Random random = new Random(SEED);
+    byte[] data = new byte[ROM_SIZE];
+    random.nextBytes(data);
+    Arrays.fill(data, 0x7fade0, ROM_SIZE, (byte)0xff);
+
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<translation>\n  <game>" + rom + "</game>\n");
+    int addr = STRINGS;
+    for (int i = 0; i < TEXTS; i++) {
+      int pointer = TABLE + i * 4;
+      int chars = 2 + random.nextInt(30);
+      putWord(data, pointer, 0x8000000 + addr);
+      for (int c = 0; c < chars; c++) {
+        data[addr++] = (byte)0x82;
+        data[addr++] = (byte)(0x9f + random.nextInt(80));
+      }
+      data[addr++] = 0;
+
+      // About as many cells as the original has bytes, give or take a third.
+      int target = chars * 2 * (2 + random.nextInt(3)) / 3;
+      StringBuilder text = new StringBuilder();
+      while (text.length() < Math.min(target, 100)) {
+        if (text.length() > 0)
+          text.append(random.nextInt(8) == 0 ? "@NEWLINE@" : " ");
+        if (random.nextInt(10) == 0)
+          text.append("@RED@" + WORDS[random.nextInt(WORDS.length)] + "@ENDCOLOR@");
+        else
+          text.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      xml.append("  <text pointer=\"" + Integer.toHexString(pointer) + "\">" + text + "</text>\n");
+    }
+    xml.append("</translation>\n");
+
+    Files.write(Paths.get(rom), data);
+    Files.write(Paths.get(script), xml.toString().getBytes("UTF-8"));
+  }
+
+// -------------------------------------------------------------------
+
+  static void putWord (byte[] data, int addr, int value) {
+    for (int i = 0; i < 4; i++)
+      data[addr + i] = (byte)(value >> (i * 8));
+  }
+
+// -------------------------------------------------------------------
+
+// Runs stage WARMUP + RUNS times, keeping the times of the last RUNS, and prints them.
+  static void measure (Stage stage) throws XMLError {
+    for (int i = 0; i < WARMUP + RUNS; i++) {
+      stage.setup();
+      long start = System.nanoTime();
+      stage.run();
+      long nanos = System.nanoTime() - start;
+      if (i >= WARMUP)
+        stage.nanos[i - WARMUP] = nanos;
+    }
+    System.out.println (String.format("%-16s %6d ops %10.3f ms mean %10.3f ms min %10.1f ns/op",
+                        stage.name, stage.ops, mean(stage) / 1e6, min(stage) / 1e6, mean(stage) / stage.ops));
+  }
+
+// -------------------------------------------------------------------
+
+  static double mean (Stage stage) {
+    long total = 0;
+    for (long n : stage.nanos)
+      total += n;
+    return (double)total / RUNS;
+  }
+
+// -------------------------------------------------------------------
+
+  static long min (Stage stage) {
+    long min = Long.MAX_VALUE;
+    for (long n : stage.nanos)
+      min = Math.min(min, n);
+    return min;
+  }
+
+// -------------------------------------------------------------------
+
+  static long max (Stage stage) {
+    long max = 0;
+    for (long n : stage.nanos)
+      max = Math.max(max, n);
+    return max;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes the results of every stage into file name.
+  static void writeJson (String name, ArrayList<Stage> stages) throws IOException {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"java\": \"" + System.getProperty("java.version") + "\",\n");
+    json.append("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+    json.append("  \"seed\": " + SEED + ",\n");
+    json.append("  \"texts\": " + TEXTS + ",\n");
+    json.append("  \"warmup\": " + WARMUP + ",\n");
+    json.append("  \"runs\": " + RUNS + ",\n");
+    json.append("  \"stages\": [\n");
+    for (int i = 0; i < stages.size(); i++) {
+      Stage s = stages.get(i);
+      json.append("    {\"name\": \"" + s.name + "\", \"ops\": " + s.ops +
+                  ", \"mean_ns\": " + Math.round(mean(s)) + ", \"min_ns\": " + min(s) +
+                  ", \"max_ns\": " + max(s) + ", \"ns_per_op\": " + Math.round(mean(s) / s.ops) +
+                  ", \"runs_ns\": " + Arrays.toString(s.nanos) + "}");
+      json.append(i + 1 < stages.size() ? ",\n" : "\n");
+    }
+    json.append("  ]\n}\n");
+    Files.write(Paths.get(name), json.toString().getBytes("UTF-8"));
+  }
+
+// -------------------------------------------------------------------
+
+// A grayscale palette of the given number of colors.
+  static IndexColorModel gray (int bits) {
+    int colors = 1 << bits;
+    byte[] level = new byte[colors];
+    for (int i = 0; i < colors; i++)
+      level[i] = (byte)(i * 255 / (colors - 1));
+    return new IndexColorModel(bits, colors, level, level, level);
+  }
+
+// -------------------------------------------------------------------
+
+// Adds the stages of a tile sheet at bpp bits per pixel.
+  static void tileStages (ArrayList<Stage> stages, final Target target, int bpp) {
+    GraphicEntry g = new GraphicEntry();
+    g.addr = TILES;
+    g.width = SHEET;
+    g.height = SHEET;
+    g.bpp = bpp;
+    final TileCodec codec = new TileCodec(g);
+    final IndexColorModel palette = gray(bpp);
+    final byte[] tiles = codec.read(target.gameData, TILES);
+    final BufferedImage image = codec.decode(tiles, palette);
+    int n = SHEET * SHEET;
+
+    stages.add(new Stage("tile-decode-" + bpp, n) {
+      void run () {
+        sink += codec.decode(tiles, palette).getWidth();
+      }
+    });
+    stages.add(new Stage("tile-encode-" + bpp, n) {
+      void run () {
+        sink += codec.encode(image).length;
+      }
+    });
+    stages.add(new Stage("tile-rom-" + bpp, n) {
+      void run () {
+        codec.write(target.gameData, TILES, tiles);
+        sink += codec.read(target.gameData, TILES).length;
+      }
+    });
+    stages.add(new Stage("lz77-" + bpp, n) {
+      void run () {
+        sink += Compression.compress(tiles, Compression.LZ77).length;
+      }
+    });
+  }
+
+// -------------------------------------------------------------------
+
+// Deletes everything in the temporary directory.
+  static void cleanUp () {
+    File[] files = dir.toFile().listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    dir.toFile().delete();
+  }
+
+// -------------------------------------------------------------------
+
+  public static void main (String argv[]) throws Exception {
+    String results = argv.length > 0 ? argv[0] : "benchmark.json";
+    dir = Files.createTempDirectory("hikago-benchmark");
+    rom = dir.resolve("synthetic.gba").toString();
+    script = dir.resolve("synthetic.xml").toString();
+    try {
+      generate();
+      Script.initControlStrings();
+      final Target target = new Target(rom, true, new PrintStream(OutputStream.nullOutputStream()));
+      final EntryHandler reader = new EntryHandler() {
+        public void game (String name) {
+        }
+        public void table (String name) {
+        }
+        public void font (FontEntry f) {
+        }
+        public void graphic (GraphicEntry g) {
+        }
+        public void free (int start, int end) {
+        }
+        public void text (TextEntry t) {
+          entries.add(t);
+        }
+        public void unreadable (XMLError xe) throws XMLError {
+          throw xe;
+        }
+        public void end () {
+        }
+      };
+      ScriptReader.read(script, reader);
+
+      // Texts expanded and wrapped once, for the stages after those.
+      final int n = entries.size();
+      final TextBlock[] blocks = new TextBlock[n];
+      final int[] budgets = new int[n];
+      final byte[][] bytes = new byte[n][];
+      for (int i = 0; i < n; i++) {
+        TextEntry t = entries.get(i);
+        blocks[i] = new TextBlock();
+        Script.controlTable.expand(t.text, Script.table, blocks[i], t.line);
+        budgets[i] = target.budget(t.pointer);
+        blocks[i].wrap(budgets[i], t.line);
+        bytes[i] = blocks[i].getBytes();
+      }
+
+      ArrayList<Stage> stages = new ArrayList<Stage>();
+      stages.add(new Stage("xml-load", n) {
+        void run () throws XMLError {
+          entries.clear();
+          ScriptReader.read(script, reader);
+          sink += entries.size();
+        }
+      });
+      stages.add(new Stage("expand", n) {
+        TextBlock block = new TextBlock();
+        void run () throws XMLError {
+          for (TextEntry t : entries) {
+            block.clear();
+            Script.controlTable.expand(t.text, Script.table, block, t.line);
+            sink += block.length;
+          }
+        }
+      });
+      stages.add(new Stage("wrap", n) {
+        void run () throws XMLError {
+          for (int i = 0; i < n; i++)
+            blocks[i].wrap(budgets[i], entries.get(i).line);
+        }
+      });
+      stages.add(new Stage("encode", n) {
+        void run () {
+          for (int i = 0; i < n; i++)
+            sink += blocks[i].getBytes().length;
+        }
+      });
+      stages.add(new Stage("place", n) {
+        void setup () {
+          target.reset();
+        }
+        void run () throws XMLError {
+          for (int i = 0; i < n; i++)
+            target.writeText(new EncodedText(entries.get(i), bytes[i], 0, -1));
+          target.placeRelocated();
+          sink += target.relocated.size();
+        }
+      });
+      stages.add(new Stage("write-rom", 1) {
+        void run () throws XMLError {
+          target.gameData.save(target.outputName(null));
+        }
+      });
+      stages.add(new Stage("write-ips", 1) {
+        void run () throws XMLError {
+          Patch.writeIps(target.gameData, target.outputName("ips"));
+        }
+      });
+      tileStages(stages, target, 4);
+      tileStages(stages, target, 8);
+
+      for (Stage stage : stages)
+        measure(stage);
+      writeJson(results, stages);
+      System.out.println ("Wrote <" + results + ">.");
+    } finally {
+      cleanUp();
+    }
+  }
+}
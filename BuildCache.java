@@ -0,0 +1,187 @@
+import java.io.*;
+import java.util.*;
+
+// Remembers, between runs, what every <text> and <graphic> was encoded to.
+// Entries are keyed by a hash of everything their encoding depends on, so a
+// changed entry simply misses the cache and is encoded again. Relocated texts
+// also remember where they were written, so an unchanged text keeps its
+// address whenever that space is still free, and the ROM changes as little as
+// possible from one run to the next.
+// The cache is only used for the ROM it was written for.
+public class BuildCache {
+  static final int MAGIC = 0x484b4331;  // HKC1
+
+  // A cached encoding, and where a relocated text was written (or -1).
+  static class Entry {
+    byte[] bytes;
+    int address;
+
+    Entry (byte[] bytes, int address) {
+      this.bytes = bytes;
+      this.address = address;
+    }
+  }
+
+  String name;
+  int romCrc;
+  // Read by encoding threads, never changed while a run is going on.
+  HashMap<Long, Entry> texts = new HashMap<Long, Entry>();
+  HashMap<Long, Entry> graphics = new HashMap<Long, Entry>();
+  // What this run encoded, to be saved for the next one.
+  HashMap<Long, Entry> newTexts = new HashMap<Long, Entry>();
+  HashMap<Long, Entry> newGraphics = new HashMap<Long, Entry>();
+  int hits;
+
+// -------------------------------------------------------------------
+
+// Loads the cache in file name, if it exists and belongs to a ROM with this CRC.
+  BuildCache (String name, int romCrc) {
+    this.name = name;
+    this.romCrc = romCrc;
+
+    File f = new File(name);
+    if (!f.exists())
+      return;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+      if (in.readInt() != MAGIC || in.readInt() != romCrc)
+        return;
+      readEntries(in, texts);
+      readEntries(in, graphics);
+    } catch (IOException fe) {
+      // A broken cache is just an empty one.
+      texts.clear();
+      graphics.clear();
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// A cache that starts with the given entries, instead of reading a file.
+  BuildCache (String name, int romCrc, HashMap<Long, Entry> texts, HashMap<Long, Entry> graphics) {
+    this.name = name;
+    this.romCrc = romCrc;
+    this.texts = texts;
+    this.graphics = graphics;
+  }
+
+// -------------------------------------------------------------------
+
+// Returns a cache for the next run in the same process, holding what this run encoded.
+  BuildCache next () {
+    return new BuildCache(name, romCrc, newTexts, newGraphics);
+  }
+
+// -------------------------------------------------------------------
+
+  static void readEntries (DataInputStream in, HashMap<Long, Entry> entries) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      long hash = in.readLong();
+      int address = in.readInt();
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      entries.put(hash, new Entry(bytes, address));
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  static void writeEntries (DataOutputStream out, HashMap<Long, Entry> entries) throws IOException {
+    out.writeInt(entries.size());
+    for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+      out.writeLong(e.getKey());
+      out.writeInt(e.getValue().address);
+      out.writeInt(e.getValue().bytes.length);
+      out.write(e.getValue().bytes);
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Writes what this run encoded into the cache file, through a temporary file
+// moved into place, so a crash never leaves half a cache.
+  void save () throws XMLError {
+    File tmp = new File(name + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(romCrc);
+      writeEntries(out, newTexts);
+      writeEntries(out, newGraphics);
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+    RomImage.replace(tmp.toPath(), name);
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the cached encoding of a text with this hash, or null.
+  Entry getText (long hash) {
+    Entry e = texts.get(hash);
+    if (e != null)
+      synchronized (this) {
+        hits++;
+      }
+    return e;
+  }
+
+// -------------------------------------------------------------------
+
+// Records the encoding of a text, and where it was written if it was relocated.
+  synchronized void putText (long hash, byte[] bytes, int address) {
+    newTexts.put(hash, new Entry(bytes, address));
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the cached tiles of a graphic with this hash, or null.
+  Entry getGraphic (long hash) {
+    Entry e = graphics.get(hash);
+    if (e != null)
+      synchronized (this) {
+        hits++;
+      }
+    return e;
+  }
+
+// -------------------------------------------------------------------
+
+  synchronized void putGraphic (long hash, byte[] tiles) {
+    newGraphics.put(hash, new Entry(tiles, -1));
+  }
+
+// -------------------------------------------------------------------
+
+// 64-bit FNV-1a hashes. hash() starts a hash, the others extend one.
+  static long hash () {
+    return 0xcbf29ce484222325L;
+  }
+
+  static long hash (long h, int value) {
+    for (int i = 0; i < 4; i++) {
+      h ^= (value >> (i*8)) & 0xFF;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  static long hash (long h, long value) {
+    return hash(hash(h, (int)value), (int)(value >>> 32));
+  }
+
+  static long hash (long h, String s) {
+    h = hash(h, s.length());
+    for (int i = 0; i < s.length(); i++)
+      h = hash(h, s.charAt(i));
+    return h;
+  }
+
+  static long hash (long h, byte[] bytes) {
+    h = hash(h, bytes.length);
+    for (int i = 0; i < bytes.length; i++) {
+      h ^= bytes[i] & 0xFF;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+}
@@ -0,0 +1,252 @@
+import java.util.*;
+
+// GBA BIOS compression: LZ77 (type 0x10, for SWI 0x11/0x12) and RLE (type
+// 0x30, for SWI 0x14/0x15). Compressed data starts with a 32-bit header, the
+// type in the low byte and the decompressed size in the upper 24 bits. Data
+// compressed here is padded to a multiple of 4 bytes; data found in ROM may not be.
+// LZ77 matches are found through hash chains over the last 4096 bytes, and
+// never copy from the byte just written, so the data can be decompressed
+// straight into VRAM, which the BIOS writes 16 bits at a time.
+public class Compression {
+  static final int LZ77 = 0x10;
+  static final int RLE = 0x30;
+
+  static final int WINDOW = 4096;
+  static final int MIN_MATCH = 3, MAX_MATCH = 18;
+  // Longest hash chain followed for one match.
+  static final int MAX_CHAIN = 256;
+  static final int HASH_BITS = 13;
+
+// -------------------------------------------------------------------
+
+// Returns the compression type called name, 0 for "none", or throws XMLError.
+  static int type (String name, int line) throws XMLError {
+    if (name.equals("none"))
+      return 0;
+    if (name.equals("lz77"))
+      return LZ77;
+    if (name.equals("rle"))
+      return RLE;
+    throw new XMLError ("Unknown compression " + name + " in graphic at line " + line);
+  }
+
+// -------------------------------------------------------------------
+
+// Compresses data with the given type.
+  static byte[] compress (byte[] data, int type) {
+    return type == LZ77 ? lz77(data) : rle(data);
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes from a and b that are equal, at most max.
+  static int matchLength (byte[] data, int a, int b, int max) {
+    int len = 0;
+    while (len < max && data[a + len] == data[b + len])
+      len++;
+    return len;
+  }
+
+// -------------------------------------------------------------------
+
+// Hash of the 3 bytes at pos.
+  static int hash3 (byte[] data, int pos) {
+    int v = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16;
+    return (v * 0x9e3779b1) >>> (32 - HASH_BITS);
+  }
+
+// -------------------------------------------------------------------
+
+// Compresses data with LZ77, greedily taking the longest match at each position.
+  static byte[] lz77 (byte[] data) {
+    int n = data.length;
+    byte[] out = new byte[4 + n + (n + 7) / 8 + 3];
+    int o = header(out, LZ77, n);
+    // Positions with the same hash, newest first: head[hash], then prev[pos].
+    int[] head = new int[1 << HASH_BITS];
+    int[] prev = new int[n];
+    Arrays.fill(head, -1);
+
+    int pos = 0, flags = 0, bit = 0;
+    while (pos < n) {
+      if (bit == 0) {
+        flags = o++;
+        out[flags] = 0;
+        bit = 0x80;
+      }
+      int best = 0, bestDisp = 0;
+      if (pos + MIN_MATCH <= n) {
+        int max = Math.min(MAX_MATCH, n - pos);
+        int chain = 0;
+        for (int c = head[hash3(data, pos)]; c >= 0 && pos - c <= WINDOW && chain < MAX_CHAIN;
+             c = prev[c], chain++) {
+          // Copying from the previous byte isn't VRAM safe.
+          if (pos - c < 2)
+            continue;
+          int len = matchLength(data, c, pos, max);
+          if (len > best) {
+            best = len;
+            bestDisp = pos - c;
+            if (len == max)
+              break;
+          }
+        }
+      }
+
+      int step = 1;
+      if (best >= MIN_MATCH) {
+        out[flags] |= bit;
+        out[o++] = (byte)(((best - MIN_MATCH) << 4) | ((bestDisp - 1) >> 8));
+        out[o++] = (byte)(bestDisp - 1);
+        step = best;
+      } else {
+        out[o++] = data[pos];
+      }
+      for (int i = 0; i < step; i++, pos++)
+        if (pos + MIN_MATCH <= n) {
+          int h = hash3(data, pos);
+          prev[pos] = head[h];
+          head[h] = pos;
+        }
+      bit >>= 1;
+    }
+    return Arrays.copyOf(out, (o + 3) & ~3);
+  }
+
+// -------------------------------------------------------------------
+
+// Compresses data with RLE: runs of 3 to 130 equal bytes, and literal
+// stretches of 1 to 128 bytes.
+  static byte[] rle (byte[] data) {
+    int n = data.length;
+    byte[] out = new byte[4 + n + (n + 127) / 128 + 3];
+    int o = header(out, RLE, n);
+
+    int pos = 0, literal = 0;
+    while (pos < n) {
+      int run = 1;
+      while (run < 130 && pos + run < n && data[pos + run] == data[pos])
+        run++;
+      if (run >= 3) {
+        o = literal(out, o, data, pos - literal, literal);
+        literal = 0;
+        out[o++] = (byte)(0x80 | (run - 3));
+        out[o++] = data[pos];
+        pos += run;
+      } else {
+        pos++;
+        if (++literal == 128) {
+          o = literal(out, o, data, pos - literal, literal);
+          literal = 0;
+        }
+      }
+    }
+    o = literal(out, o, data, pos - literal, literal);
+    return Arrays.copyOf(out, (o + 3) & ~3);
+  }
+
+// -------------------------------------------------------------------
+
+// Writes a literal RLE block of len bytes from data[start], if len > 0.
+// Returns the new end of out.
+  static int literal (byte[] out, int o, byte[] data, int start, int len) {
+    if (len == 0)
+      return o;
+    out[o++] = (byte)(len - 1);
+    System.arraycopy(data, start, out, o, len);
+    return o + len;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes the header of compressed data into out. Returns its size.
+  static int header (byte[] out, int type, int size) {
+    out[0] = (byte)type;
+    out[1] = (byte)size;
+    out[2] = (byte)(size >> 8);
+    out[3] = (byte)(size >> 16);
+    return 4;
+  }
+
+// -------------------------------------------------------------------
+
+// Decompresses the data at addr in rom. If original is set, the data is read
+// as it was before any write. Throws XMLError if there is no compressed data at addr.
+  static byte[] decompress (RomImage rom, int addr, boolean original) throws XMLError {
+    return run(rom, addr, original).data;
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes the compressed data at addr takes in ROM, as it was before any write:
+// exactly what the decompressor reads, without padding, since the bytes after
+// it may belong to something else.
+  static int compressedSize (RomImage rom, int addr) throws XMLError {
+    return run(rom, addr, true).size;
+  }
+
+// -------------------------------------------------------------------
+
+  // What a pass over compressed data found.
+  static class Result {
+    byte[] data;
+    // Bytes read, header included.
+    int size;
+  }
+
+// -------------------------------------------------------------------
+
+// Decompresses the data at addr, and finds out how large it is in ROM.
+  static Result run (RomImage rom, int addr, boolean original) throws XMLError {
+    int header = read(rom, addr, original) | read(rom, addr + 1, original) << 8 |
+                 read(rom, addr + 2, original) << 16 | read(rom, addr + 3, original) << 24;
+    int type = header & 0xff, n = header >>> 8;
+    if (type != LZ77 && type != RLE)
+      throw new XMLError ("No LZ77 or RLE data at " + Integer.toHexString(addr));
+
+    Result result = new Result();
+    byte[] out = new byte[n];
+    int i = addr + 4, pos = 0;
+    try {
+      if (type == LZ77) {
+        while (pos < n) {
+          int flags = read(rom, i++, original);
+          for (int bit = 0x80; bit != 0 && pos < n; bit >>= 1)
+            if ((flags & bit) != 0) {
+              int b0 = read(rom, i++, original), b1 = read(rom, i++, original);
+              int len = (b0 >> 4) + MIN_MATCH, disp = ((b0 & 0xf) << 8 | b1) + 1;
+              if (disp > pos)
+                throw new XMLError ("Bad LZ77 data at " + Integer.toHexString(addr));
+              for (int k = 0; k < len && pos < n; k++, pos++)
+                out[pos] = out[pos - disp];
+            } else {
+              out[pos++] = (byte)read(rom, i++, original);
+            }
+        }
+      } else {
+        while (pos < n) {
+          int flag = read(rom, i++, original);
+          if ((flag & 0x80) != 0) {
+            int len = (flag & 0x7f) + 3, value = read(rom, i++, original);
+            for (int k = 0; k < len && pos < n; k++)
+              out[pos++] = (byte)value;
+          } else {
+            for (int k = 0; k <= flag && pos < n; k++)
+              out[pos++] = (byte)read(rom, i++, original);
+          }
+        }
+      }
+    } catch (IndexOutOfBoundsException ioobe) {
+      throw new XMLError ("Compressed data at " + Integer.toHexString(addr) + " runs past the end of the ROM");
+    }
+    result.data = out;
+    result.size = i - addr;
+    return result;
+  }
+
+// -------------------------------------------------------------------
+
+  static int read (RomImage rom, int addr, boolean original) {
+    return original ? rom.original(addr) : rom.read(addr);
+  }
+}
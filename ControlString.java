@@ -2,16 +2,22 @@ public class ControlString
 {
   public String controlString;
   public String controlBytes;
-  // This special control string is refered to in TextLine.java
+  // In-game width in cells. Usually one cell per byte.
+  public int width;
+  // This special control string has 6 bytes, but takes 8 cells on screen.
   public static String name = new String(new char[]{0x87, 0x56, 0x87, 0x40, 0x87, 0x54});
   
   public ControlString (String string, char[] bytes) {
-    controlString = string;
-    controlBytes = new String(bytes);
+    this(string, new String(bytes));
   }
   
   public ControlString (String string, String bytes) {
+    this(string, bytes, bytes.length());
+  }
+
+  public ControlString (String string, String bytes, int width) {
     controlString = string;
     controlBytes = bytes;
+    this.width = width;
   }
 }
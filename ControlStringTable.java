@@ -0,0 +1,92 @@
+import java.util.*;
+
+// All control strings compiled into one trie, so a text is expanded in a
+// single pass instead of one String.replace per control string.
+// Control strings are ASCII, so each trie node is a row of 128 transitions.
+public class ControlStringTable {
+  // next[node*128 + c] is the node reached from node by c, or 0 if none.
+  // Node 0 is the root.
+  int[] next;
+  // Control string ending at each node, or null.
+  ControlString[] output;
+  int nodes;
+
+// -------------------------------------------------------------------
+
+// Builds the trie from the given control strings.
+  ControlStringTable (List<ControlString> controlStrings) {
+    int size = 1;
+    for (ControlString cs : controlStrings)
+      size += cs.controlString.length();
+
+    next = new int[size * 128];
+    output = new ControlString[size];
+    nodes = 1;
+
+    for (ControlString cs : controlStrings) {
+      int node = 0;
+      for (int i = 0; i < cs.controlString.length(); i++) {
+        int c = cs.controlString.charAt(i) & 0x7f;
+        if (next[node*128 + c] == 0)
+          next[node*128 + c] = nodes++;
+        node = next[node*128 + c];
+      }
+      output[node] = cs;
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Appends text to the expanded text of out, with every control string replaced
+// by its bytes, and every other character by its bytes in table.
+// The longest control string starting at each position wins.
+// Throws XMLError on something that looks like a control string (@NAME@)
+// but isn't one, or on a character table has no bytes for.
+  void expand (String text, TableCodec table, TextBlock out, int line) throws XMLError {
+    int len = text.length();
+    int i = 0;
+
+    while (i < len) {
+      // Walk the trie as far as text allows, remembering the last match.
+      int node = 0, matchEnd = -1, match = 0;
+      for (int j = i; j < len; j++) {
+        char c = text.charAt(j);
+        if (c >= 128 || (node = next[node*128 + c]) == 0)
+          break;
+        if (output[node] != null) {
+          matchEnd = j + 1;
+          match = node;
+        }
+      }
+
+      if (matchEnd >= 0) {
+        out.append(output[match]);
+        i = matchEnd;
+      } else {
+        int end = tokenEnd(text, i);
+        if (end >= 0)
+          throw new XMLError ("Unknown control string " + text.substring(i, end) +
+                              " in text at line " + line);
+        i = table.encode(text, i, out, line);
+      }
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// If text has something like @TOKEN@ at i, returns the index after it, else -1.
+  static int tokenEnd (String text, int i) {
+    if (text.charAt(i) != '@')
+      return -1;
+    int j = i + 1;
+    while (j < text.length()) {
+      char c = text.charAt(j);
+      if (c == '@')
+        return j > i + 1 ? j + 1 : -1;
+      if (!(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '_')
+        return -1;
+      j++;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,27 @@
+// A <text> after control strings were replaced and the text was wrapped
+// and encoded, waiting to be written into the ROM.
+public class EncodedText {
+  public TextEntry entry;
+  // Bytes to write, including the \0 at end.
+  public byte[] bytes;
+  // Where the original string was, and its length including the \0.
+  public int original, originalLength;
+  // Where the text was written.
+  public int address;
+  // String whose tail holds this text: itself, unless the text shares space.
+  public EncodedText host;
+
+  // Hash of the text and everything its encoding depends on.
+  public long hash;
+  // Where this text was relocated to in the previous run, or -1.
+  public int cachedAddress;
+  // Problem found while wrapping the text, or null.
+  public String warning;
+
+  public EncodedText (TextEntry entry, byte[] bytes, long hash, int cachedAddress) {
+    this.entry = entry;
+    this.bytes = bytes;
+    this.hash = hash;
+    this.cachedAddress = cachedAddress;
+  }
+}
@@ -0,0 +1,21 @@
+// Receives the entries of a script as ScriptReader finds them, in document order.
+public interface EntryHandler {
+  // Called once for <game>, before any other entry.
+  void game (String name) throws XMLError;
+  // Called for <table>, before any <text>: texts are encoded with the
+  // table in file name.
+  void table (String name) throws XMLError;
+  // Called for <font>, after <game> and before any <text>: texts are wrapped
+  // in pixels, with the widths of the glyphs of f.
+  void font (FontEntry f) throws XMLError;
+  void graphic (GraphicEntry g) throws XMLError;
+  // Called for <free start="..." end="..."/>: ROM bytes [start, end) are unused.
+  void free (int start, int end) throws XMLError;
+  void text (TextEntry t) throws XMLError;
+  // Called for a <free>, <font>, <graphic> or <text> that can't be read, such
+  // as one with a bad number, in its place in document order. Handlers that
+  // collect problems record xe and go on; the others throw it.
+  void unreadable (XMLError xe) throws XMLError;
+  // Called after the last entry of the document.
+  void end () throws XMLError;
+}
@@ -0,0 +1,16 @@
+// One <font> element of the script: a proportional font in ROM.
+public class FontEntry {
+  // Address in ROM of the glyph of code first, followed by the next count - 1.
+  public int addr;
+  public int first, count;
+  // Size of each glyph in 8x8 tiles, stored one tile row after another.
+  public int width = 1, height = 1;
+  // Bits per pixel, 4 or 8.
+  public int bpp = 4;
+  // Width of a line of text in pixels.
+  public int lineWidth;
+  // Pixels after each glyph, before the next one.
+  public int spacing = 1;
+  // Line of the script where this element starts.
+  public int line;
+}
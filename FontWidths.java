@@ -0,0 +1,66 @@
+import java.awt.image.*;
+
+// Widths in pixels of the glyphs of a proportional font, measured from its
+// tiles in ROM, so texts are wrapped in pixels instead of cells.
+// Each glyph is as wide as its rightmost pixel that isn't color 0, plus the
+// spacing of the font. A glyph without any pixel is half a glyph cell wide.
+// Codes outside the font are as wide as its widest glyph, and so is each cell
+// of a control string, such as the 8 cells of @NAME@.
+// Glyphs are measured once, when the <font> is read. Each text then sums the
+// widths of its words once, and wrapping compares those sums.
+public class FontWidths {
+  // Width of each glyph, by code - first.
+  short[] widths;
+  int first;
+  // Width of a line, and of the widest glyph.
+  int line, widest;
+  // Hash of the widths, for BuildCache.
+  long hash;
+
+// -------------------------------------------------------------------
+
+// Measures the glyphs of font f in rom.
+  static FontWidths read (FontEntry f, RomImage rom) throws XMLError {
+    GraphicEntry g = new GraphicEntry();
+    g.addr = f.addr;
+    g.width = f.width;
+    g.height = f.height * f.count;
+    g.bpp = f.bpp;
+    TileCodec codec = new TileCodec(g);
+    if (f.addr < 0 || f.addr + codec.size() > rom.length())
+      throw new XMLError ("Font at line " + f.line + " goes past the end of the ROM");
+    byte[] gray = new byte[1 << f.bpp];
+    Raster pixels = codec.decode(codec.read(rom, f.addr),
+                                 new IndexColorModel(f.bpp, gray.length, gray, gray, gray)).getRaster();
+
+    FontWidths font = new FontWidths();
+    font.first = f.first;
+    font.line = f.lineWidth;
+    font.widths = new short[f.count];
+    int cell = f.width * 8, rows = f.height * 8;
+    for (int i = 0; i < f.count; i++) {
+      int right = 0;
+      for (int y = i * rows; y < (i + 1) * rows; y++)
+        for (int x = cell - 1; x >= right; x--)
+          if (pixels.getSample(x, y, 0) != 0) {
+            right = x + 1;
+            break;
+          }
+      font.widths[i] = (short)(right == 0 ? cell / 2 : right + f.spacing);
+      font.widest = Math.max(font.widest, font.widths[i]);
+    }
+
+    font.hash = BuildCache.hash(BuildCache.hash(BuildCache.hash(BuildCache.hash(), font.first), font.line),
+                                font.widest);
+    for (short w : font.widths)
+      font.hash = BuildCache.hash(font.hash, w);
+    return font;
+  }
+
+// -------------------------------------------------------------------
+
+// Width of the glyph of code.
+  int width (int code) {
+    return code >= first && code - first < widths.length ? widths[code - first] : widest;
+  }
+}
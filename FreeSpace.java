@@ -0,0 +1,165 @@
+import java.util.*;
+
+// Keeps track of the ROM ranges where relocated strings may be written.
+// Free space comes from named regions: the unused end of ROM, ranges declared
+// with <free> in the script, and original strings that were given up by a
+// relocation or only partly overwritten. Strings are placed best-fit: each
+// goes into the smallest free range that holds it.
+public class FreeSpace {
+  // A named set of ranges, remembered for the final report.
+  static class Region {
+    String name;
+    TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+
+    Region (String name) {
+      this.name = name;
+    }
+  }
+
+  ArrayList<Region> regions = new ArrayList<Region>();
+  // Free ranges, as start -> end (exclusive). Ranges never touch each other.
+  TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>();
+
+// -------------------------------------------------------------------
+
+// Adds [start, end) to the region called name, creating the region if needed.
+  void add (String name, int start, int end) {
+    if (start >= end)
+      return;
+    Region region = null;
+    for (Region r : regions)
+      if (r.name.equals(name))
+        region = r;
+    if (region == null) {
+      region = new Region(name);
+      regions.add(region);
+    }
+    insert(region.ranges, start, end);
+    insert(free, start, end);
+  }
+
+// -------------------------------------------------------------------
+
+// Marks [start, end) as used: it won't be handed out, nor counted in any region.
+  void remove (int start, int end) {
+    if (start >= end)
+      return;
+    subtract(free, start, end);
+    for (Region r : regions)
+      subtract(r.ranges, start, end);
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the start of the smallest free range with at least len bytes, and
+// marks those len bytes as used. Returns -1 if no range is large enough.
+  int allocate (int len) {
+    return allocate(len, 1);
+  }
+
+// -------------------------------------------------------------------
+
+// Same as allocate(len), for len bytes starting at a multiple of align.
+  int allocate (int len, int align) {
+    int best = -1, bestSize = Integer.MAX_VALUE;
+    for (Map.Entry<Integer, Integer> e : free.entrySet()) {
+      int start = (e.getKey() + align - 1) / align * align;
+      int size = e.getValue() - e.getKey();
+      if (e.getValue() - start >= len && size < bestSize) {
+        best = start;
+        bestSize = size;
+      }
+    }
+    if (best >= 0)
+      subtract(free, best, best + len);
+    return best;
+  }
+
+// -------------------------------------------------------------------
+
+// Marks [start, start + len) as used, if all of it is free. Returns whether it was.
+  boolean claim (int start, int len) {
+    Map.Entry<Integer, Integer> e = free.floorEntry(start);
+    if (e == null || e.getValue() < start + len)
+      return false;
+    subtract(free, start, start + len);
+    return true;
+  }
+
+// -------------------------------------------------------------------
+
+// Records, for each region, how much of it was used and how fragmented the rest is.
+  void measure (Metrics metrics) {
+    for (Region r : regions) {
+      int total = 0, unused = 0, fragments = 0, largest = 0;
+      for (Map.Entry<Integer, Integer> e : r.ranges.entrySet()) {
+        total += e.getValue() - e.getKey();
+        // Free ranges are pieces of region ranges, or span several of them.
+        for (Map.Entry<Integer, Integer> f : free.subMap(e.getKey(), true, e.getValue(), false).entrySet()) {
+          int size = Math.min(f.getValue(), e.getValue()) - f.getKey();
+          unused += size;
+          fragments++;
+          largest = Math.max(largest, size);
+        }
+        Map.Entry<Integer, Integer> f = free.lowerEntry(e.getKey());
+        if (f != null && f.getValue() > e.getKey()) {
+          int size = Math.min(f.getValue(), e.getValue()) - e.getKey();
+          unused += size;
+          fragments++;
+          largest = Math.max(largest, size);
+        }
+      }
+      metrics.region(r.name, total, unused, fragments, largest);
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Adds [start, end) to ranges, merging it with any range it overlaps or touches.
+  static void insert (TreeMap<Integer, Integer> ranges, int start, int end) {
+    Map.Entry<Integer, Integer> e = ranges.floorEntry(start);
+    if (e != null && e.getValue() >= start) {
+      start = e.getKey();
+      end = Math.max(end, e.getValue());
+      ranges.remove(e.getKey());
+    }
+    while ((e = ranges.ceilingEntry(start)) != null && e.getKey() <= end) {
+      end = Math.max(end, e.getValue());
+      ranges.remove(e.getKey());
+    }
+    ranges.put(start, end);
+  }
+
+// -------------------------------------------------------------------
+
+// Whether addr is inside one of ranges.
+  static boolean contains (TreeMap<Integer, Integer> ranges, int addr) {
+    Map.Entry<Integer, Integer> e = ranges.floorEntry(addr);
+    return e != null && e.getValue() > addr;
+  }
+
+// -------------------------------------------------------------------
+
+// Whether any of [start, end) is inside one of ranges.
+  static boolean intersects (TreeMap<Integer, Integer> ranges, int start, int end) {
+    Map.Entry<Integer, Integer> e = ranges.lowerEntry(end);
+    return e != null && e.getValue() > start;
+  }
+
+// -------------------------------------------------------------------
+
+// Removes [start, end) from ranges, splitting any range that contains it.
+  static void subtract (TreeMap<Integer, Integer> ranges, int start, int end) {
+    Map.Entry<Integer, Integer> e = ranges.lowerEntry(start);
+    if (e != null && e.getValue() > start) {
+      ranges.put(e.getKey(), start);
+      if (e.getValue() > end)
+        ranges.put(end, e.getValue());
+    }
+    while ((e = ranges.ceilingEntry(start)) != null && e.getKey() < end) {
+      ranges.remove(e.getKey());
+      if (e.getValue() > end)
+        ranges.put(end, e.getValue());
+    }
+  }
+}
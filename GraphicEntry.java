@@ -0,0 +1,30 @@
+// One <graphic> element of the script.
+public class GraphicEntry {
+  // Address of the tiles in ROM.
+  public int addr;
+  // Size in 8x8 tiles.
+  public int width, height;
+  // Base name of the image, without directory and extension.
+  public String name;
+  // Palette file, or address of the palettes in ROM (-1 if in a file), and
+  // index of the 16-color palette among them.
+  public String palette;
+  public int paletteAddr = -1;
+  public int paletteIndex;
+  // Whether inserted images are remapped to the nearest palette colors.
+  public boolean remap;
+  // Bits per pixel, 4 or 8.
+  public int bpp = 4;
+  // Whether tile rows are laid out in a sheet 32 tiles wide (at 4bpp), as
+  // sprites with 2D mapping are, instead of one after the other.
+  public boolean layout2d;
+  // Whether the image is mirrored horizontally or vertically in ROM.
+  public boolean hflip, vflip;
+  // Compression type of the tiles (Compression.LZ77 or RLE), or 0.
+  public int compression;
+  // Address of a pointer to the tiles, so compressed tiles can be relocated
+  // when they grow, or -1.
+  public int pointer = -1;
+  // Line of the script where this element starts.
+  public int line;
+}
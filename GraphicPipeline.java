@@ -0,0 +1,140 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs <graphic>s on a fixed pool of worker threads: reading and writing the
+// BMP files, decoding and encoding tiles all happen in parallel. Inserted tiles
+// are still written into the ROM one image at a time in document order, by the
+// thread reading the script, so the output is the same as a sequential run.
+// Graphics that would write over each other are rejected before they start.
+public class GraphicPipeline {
+  static final int THREADS = Runtime.getRuntime().availableProcessors();
+  // Images in flight; bounds memory use when reading large scripts.
+  static final int WINDOW = THREADS * 4;
+  static ExecutorService workers;
+
+  // One graphic, and what its worker did with it.
+  static class Job {
+    GraphicEntry g;
+    TileCodec codec;
+    // Tiles to write, or null if there is nothing to insert. Compressed
+    // graphics hold the compressed data.
+    byte[] tiles;
+    // Bytes the graphic takes in ROM before insertion.
+    int slot;
+    long nanos;
+
+    Job (GraphicEntry g) {
+      this.g = g;
+      codec = new TileCodec(g);
+    }
+  }
+
+  // End of a ROM range taken by a graphic, and the line of that graphic.
+  static class Range {
+    int end, line;
+
+    Range (int end, int line) {
+      this.end = end;
+      this.line = line;
+    }
+  }
+
+  ArrayDeque<Future<Job>> pending = new ArrayDeque<Future<Job>>();
+  // ROM ranges taken by the graphics inserted so far, by start. Each graphic
+  // takes one range per row of tiles, or one for its compressed data.
+  TreeMap<Integer, Range> taken = new TreeMap<Integer, Range>();
+
+// -------------------------------------------------------------------
+
+// The shared worker threads. They are daemons, so they never keep the
+// program running.
+  static synchronized ExecutorService workers () {
+    if (workers == null)
+      workers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        public Thread newThread (Runnable r) {
+          Thread t = new Thread(r, "graphics");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    return workers;
+  }
+
+// -------------------------------------------------------------------
+
+// Starts extracting or inserting g, finishing older graphics if too many are waiting.
+// Throws XMLError if g would be inserted over another graphic.
+  void submit (final GraphicEntry g, final boolean extract) throws XMLError {
+    final Job job = new Job(g);
+    if (!extract)
+      take(job);
+    pending.add(workers().submit(new Callable<Job>() {
+      public Job call () throws XMLError {
+        long start = System.nanoTime();
+        if (extract)
+          Script.readGraphic(g);
+        else
+          job.tiles = Script.encodeGraphic(g, job.codec);
+        job.nanos = System.nanoTime() - start;
+        return job;
+      }
+    }));
+    if (pending.size() >= WINDOW)
+      commit();
+  }
+
+// -------------------------------------------------------------------
+
+// Records the ROM ranges of job, throwing XMLError if another graphic has
+// any of them already.
+  void take (Job job) throws XMLError {
+    if (job.g.compression != 0) {
+      job.slot = Compression.compressedSize(Script.target.gameData, job.g.addr);
+      take(job, job.g.addr, job.g.addr + job.slot);
+    } else {
+      int rowSize = job.g.width * job.codec.tileSize();
+      job.slot = job.codec.size();
+      for (int ty = 0; ty < job.g.height; ty++) {
+        int start = job.codec.rowAddress(job.g.addr, ty);
+        take(job, start, start + rowSize);
+      }
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  void take (Job job, int start, int end) throws XMLError {
+    Map.Entry<Integer, Range> e = taken.lowerEntry(end);
+    if (e != null && e.getValue().end > start)
+      throw new XMLError ("Graphic at line " + job.g.line + " overlaps graphic at line " +
+                          e.getValue().line);
+    taken.put(start, new Range(end, job.g.line));
+  }
+
+// -------------------------------------------------------------------
+
+// Waits for the oldest graphic, writes its tiles and records how long it took.
+  void commit () throws XMLError {
+    Job job;
+    try {
+      job = pending.remove().get();
+    } catch (InterruptedException ie) {
+      throw new XMLError ("Interrupted while converting graphics");
+    } catch (ExecutionException ee) {
+      throw TextPipeline.unwrap(ee);
+    }
+    Script.target.metrics.add("graphics", job.nanos);
+    if (Script.extract)
+      Script.target.metrics.count("graphics", 1);
+    else if (job.tiles != null)
+      Script.target.writeGraphic(job);
+  }
+
+// -------------------------------------------------------------------
+
+// Finishes every pending graphic.
+  void drain () throws XMLError {
+    while (!pending.isEmpty())
+      commit();
+  }
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import jdk.jfr.*;
+
+// What one run did to one ROM, and what it cost: time per stage, counters
+// such as relocated texts and bytes saved, how much of each region of free
+// space was used, and garbage collections and allocation during the run.
+// Printed as a short summary at the end of the run, instead of a line per entry.
+// Stages timed on worker threads, such as encoding, add up the time of every
+// thread, so they may take longer than the whole run.
+// With -Dmetrics=json the same goes into a JSON file next to the output.
+// With -Dmetrics=jfr the run is also recorded with Flight Recorder, with an
+// event for every stage, into a file named after the script.
+public class Metrics {
+  static final String MODE = System.getProperty("metrics", "");
+  static Recording recording;
+
+  // A stage of a run, for Flight Recorder.
+  @Name("hikago.Stage")
+  @Label("Stage")
+  static class StageEvent extends jdk.jfr.Event {
+    @Label("Stage")
+    String stage;
+    @Label("Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long nanos;
+  }
+
+  // Nanoseconds per stage and counters, in the order they were first seen.
+  LinkedHashMap<String, Long> stages = new LinkedHashMap<String, Long>();
+  LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>();
+  // Bytes in each region of free space: total, unused, fragments, largest fragment.
+  LinkedHashMap<String, int[]> regions = new LinkedHashMap<String, int[]>();
+  long start, collections, collectionMillis, allocated;
+
+// -------------------------------------------------------------------
+
+  Metrics () {
+    start = System.nanoTime();
+    collections = collections();
+    collectionMillis = collectionMillis();
+    allocated = allocated();
+  }
+
+// -------------------------------------------------------------------
+
+// Adds the time since start, from System.nanoTime(), to stage.
+  synchronized void time (String stage, long start) {
+    add(stage, System.nanoTime() - start);
+  }
+
+// -------------------------------------------------------------------
+
+// Adds nanos to stage.
+  synchronized void add (String stage, long nanos) {
+    Long old = stages.get(stage);
+    stages.put(stage, (old == null ? 0 : old) + nanos);
+    if (recording != null) {
+      StageEvent event = new StageEvent();
+      event.stage = stage;
+      event.nanos = nanos;
+      event.commit();
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Adds n to counter name.
+  synchronized void count (String name, long n) {
+    Long old = counts.get(name);
+    counts.put(name, (old == null ? 0 : old) + n);
+  }
+
+// -------------------------------------------------------------------
+
+  long get (String name) {
+    Long n = counts.get(name);
+    return n == null ? 0 : n;
+  }
+
+// -------------------------------------------------------------------
+
+// Records how much of region name is used.
+  synchronized void region (String name, int total, int unused, int fragments, int largest) {
+    regions.put(name, new int[]{total, unused, fragments, largest});
+  }
+
+// -------------------------------------------------------------------
+
+  static long collections () {
+    long n = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(gc.getCollectionCount(), 0);
+    return n;
+  }
+
+// -------------------------------------------------------------------
+
+  static long collectionMillis () {
+    long n = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      n += Math.max(gc.getCollectionTime(), 0);
+    return n;
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes allocated so far by the threads still alive, or 0 if the JVM can't tell.
+  static long allocated () {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return 0;
+    com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)threads;
+    if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled())
+      return 0;
+    long n = 0;
+    for (long bytes : sun.getThreadAllocatedBytes(threads.getAllThreadIds()))
+      n += Math.max(bytes, 0);
+    return n;
+  }
+
+// -------------------------------------------------------------------
+
+// Ends the run: prints the summary into out, and writes it into file json
+// if -Dmetrics=json was given.
+  synchronized void finish (PrintStream out, String json) throws XMLError {
+    stages.put("total", System.nanoTime() - start);
+    collections = collections() - collections;
+    collectionMillis = collectionMillis() - collectionMillis;
+    allocated = Math.max(allocated() - allocated, 0);
+
+    StringBuilder s = new StringBuilder("Time:");
+    for (Map.Entry<String, Long> e : stages.entrySet())
+      s.append(" " + e.getKey() + " " + e.getValue() / 1000000 + " ms,");
+    s.setLength(s.length() - 1);
+    if (get("texts") > 0)
+      s.append("; " + get("texts") * 1000000000L / Math.max(stages.get("total"), 1) + " texts/s");
+    out.println(s + ".");
+    if (counts.size() > 0) {
+      s = new StringBuilder("Counts:");
+      for (Map.Entry<String, Long> e : counts.entrySet())
+        s.append(" " + e.getKey() + " " + e.getValue() + ",");
+      s.setLength(s.length() - 1);
+      out.println(s + ".");
+    }
+    for (Map.Entry<String, int[]> e : regions.entrySet()) {
+      int[] r = e.getValue();
+      out.println((r[0] - r[1]) + " of " + r[0] + " " + e.getKey() + " bytes used, " +
+                  r[1] + " free in " + r[2] + " fragments (largest " + r[3] + ").");
+    }
+    out.println("Memory: " + collections + " collections in " + collectionMillis + " ms, " +
+                allocated / (1 << 20) + " MB allocated.");
+
+    if (MODE.equals("json"))
+      writeJson(json);
+  }
+
+// -------------------------------------------------------------------
+
+// Writes every stage, counter and region into file name.
+  void writeJson (String name) throws XMLError {
+    StringBuilder json = new StringBuilder("{\n  \"stages_ns\": {");
+    String comma = "";
+    for (Map.Entry<String, Long> e : stages.entrySet()) {
+      json.append(comma + "\n    \"" + e.getKey() + "\": " + e.getValue());
+      comma = ",";
+    }
+    json.append("\n  },\n  \"counts\": {");
+    comma = "";
+    for (Map.Entry<String, Long> e : counts.entrySet()) {
+      json.append(comma + "\n    \"" + e.getKey() + "\": " + e.getValue());
+      comma = ",";
+    }
+    json.append("\n  },\n  \"regions\": {");
+    comma = "";
+    for (Map.Entry<String, int[]> e : regions.entrySet()) {
+      int[] r = e.getValue();
+      json.append(comma + "\n    \"" + e.getKey() + "\": {\"total\": " + r[0] + ", \"unused\": " + r[1] +
+                  ", \"fragments\": " + r[2] + ", \"largest\": " + r[3] + "}");
+      comma = ",";
+    }
+    json.append("\n  },\n  \"gc\": {\"collections\": " + collections + ", \"ms\": " + collectionMillis +
+                ", \"allocated\": " + allocated + "}\n}\n");
+    try {
+      Files.write(Paths.get(name), json.toString().getBytes("UTF-8"));
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Starts recording with Flight Recorder, if -Dmetrics=jfr was given.
+  static synchronized void record () throws XMLError {
+    if (!MODE.equals("jfr") || recording != null)
+      return;
+    try {
+      recording = new Recording(Configuration.getConfiguration("default"));
+    } catch (IOException | java.text.ParseException fe) {
+      throw new XMLError ("Can't start Flight Recorder: " + fe.getMessage());
+    }
+    recording.enable(StageEvent.class);
+    recording.start();
+  }
+
+// -------------------------------------------------------------------
+
+// Writes what was recorded so far into file name, if recording.
+  static synchronized void dump (String name) throws XMLError {
+    if (recording == null)
+      return;
+    try {
+      recording.dump(Paths.get(name));
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+    System.out.println ("Recorded <" + name + ">.");
+  }
+}
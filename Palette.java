@@ -0,0 +1,164 @@
+import java.awt.image.*;
+import java.util.*;
+
+// Palettes for graphics, loaded once per run and shared by every image.
+// A palette comes either from a file of 8-bit RGB triples (such as menu.act)
+// or straight from ROM, where the GBA keeps colors as 16-bit BGR555 halfwords.
+// For insertion, images can be remapped to a palette: every color is replaced
+// by the nearest palette entry, looked up in a table of all 32768 GBA colors.
+public class Palette {
+  static HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+  static HashMap<String, IndexColorModel> models = new HashMap<String, IndexColorModel>();
+  static IdentityHashMap<IndexColorModel, byte[]> tables = new IdentityHashMap<IndexColorModel, byte[]>();
+
+// -------------------------------------------------------------------
+
+// Forgets every palette, so files are read again on the next run.
+  static synchronized void clear () {
+    files.clear();
+    models.clear();
+    tables.clear();
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the palette of graphic g: 16 colors at 4bpp, 256 at 8bpp.
+// Throws XMLError if g has no palette.
+  static IndexColorModel get (GraphicEntry g, RomImage rom) throws XMLError {
+    int colors = g.bpp == 8 ? 256 : 16;
+    if (g.paletteAddr >= 0)
+      return fromRom(rom, g.paletteAddr, g.paletteIndex, colors);
+    if (g.palette != null)
+      return fromFile(g.palette, g.paletteIndex, colors);
+    throw new XMLError ("No element named palette in graphic at line " + g.line);
+  }
+
+// -------------------------------------------------------------------
+
+// Reads colors entries of 3 bytes from file name, starting from entry
+// (index * colors), to construct an IndexColorModel.
+  static synchronized IndexColorModel fromFile (String name, int index, int colors) throws XMLError {
+    String key = name + "#" + index + "#" + colors;
+    IndexColorModel palette = models.get(key);
+    if (palette != null)
+      return palette;
+
+    byte[] rawPalette = files.get(name);
+    if (rawPalette == null) {
+      rawPalette = Script.readFile(name);
+      files.put(name, rawPalette);
+    }
+    if (rawPalette.length < (index + 1) * colors * 3)
+      throw new XMLError ("Palette <" + name + "> has no " + colors + "-color palette " + index);
+    palette = new IndexColorModel (8, colors, rawPalette, index * colors * 3, false);
+    models.put(key, palette);
+    return palette;
+  }
+
+// -------------------------------------------------------------------
+
+// Reads colors BGR555 halfwords from rom, starting from entry (index * colors)
+// of the palettes at addr, to construct an IndexColorModel.
+  static synchronized IndexColorModel fromRom (RomImage rom, int addr, int index, int colors) {
+    String key = "@" + Integer.toHexString(addr) + "#" + index + "#" + colors;
+    IndexColorModel palette = models.get(key);
+    if (palette != null)
+      return palette;
+
+    byte[] r = new byte[colors], g = new byte[colors], b = new byte[colors];
+    for (int i = 0; i < colors; i++) {
+      int c = rom.read(addr + (index * colors + i) * 2) | rom.read(addr + (index * colors + i) * 2 + 1) << 8;
+      r[i] = (byte)expand(c & 0x1f);
+      g[i] = (byte)expand((c >> 5) & 0x1f);
+      b[i] = (byte)expand((c >> 10) & 0x1f);
+    }
+    palette = new IndexColorModel (8, colors, r, g, b);
+    models.put(key, palette);
+    return palette;
+  }
+
+// -------------------------------------------------------------------
+
+// Scales a 5-bit color component to 8 bits, so 0x1f becomes 0xff.
+  static int expand (int c) {
+    return (c << 3) | (c >> 2);
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the 15-bit GBA color nearest to a 24-bit RGB color.
+  static int bgr555 (int rgb) {
+    return ((rgb >> 19) & 0x1f) | ((rgb >> 6) & 0x3e0) | ((rgb << 7) & 0x7c00);
+  }
+
+// -------------------------------------------------------------------
+
+// Returns, for every BGR555 color, the index of the nearest color of palette.
+  static synchronized byte[] nearest (IndexColorModel palette) {
+    byte[] table = tables.get(palette);
+    if (table != null)
+      return table;
+
+    int colors = palette.getMapSize();
+    int[] r = new int[colors], g = new int[colors], b = new int[colors];
+    for (int i = 0; i < colors; i++) {
+      r[i] = palette.getRed(i);
+      g[i] = palette.getGreen(i);
+      b[i] = palette.getBlue(i);
+    }
+    table = new byte[0x8000];
+    for (int c = 0; c < 0x8000; c++) {
+      int cr = expand(c & 0x1f), cg = expand((c >> 5) & 0x1f), cb = expand((c >> 10) & 0x1f);
+      int best = 0, bestDistance = Integer.MAX_VALUE;
+      for (int i = 0; i < colors && bestDistance > 0; i++) {
+        int distance = (cr - r[i]) * (cr - r[i]) + (cg - g[i]) * (cg - g[i]) + (cb - b[i]) * (cb - b[i]);
+        if (distance < bestDistance) {
+          best = i;
+          bestDistance = distance;
+        }
+      }
+      table[c] = (byte)best;
+    }
+    tables.put(palette, table);
+    return table;
+  }
+
+// -------------------------------------------------------------------
+
+// Returns a copy of image drawn with the colors of palette, each pixel being
+// the nearest palette color. Indexed images are remapped through their own
+// color map, so only its entries are looked up; other images one row at a time.
+  static BufferedImage remap (BufferedImage image, IndexColorModel palette) {
+    byte[] table = nearest(palette);
+    int width = image.getWidth(), height = image.getHeight();
+    BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette);
+    byte[] out = ((DataBufferByte)result.getRaster().getDataBuffer()).getData();
+    int stride = ((ComponentSampleModel)result.getRaster().getSampleModel()).getScanlineStride();
+
+    if (image.getColorModel() instanceof IndexColorModel) {
+      IndexColorModel cm = (IndexColorModel)image.getColorModel();
+      byte[] map = new byte[256];
+      // Entries that already match the palette keep their index, even when
+      // the palette holds the same color twice.
+      for (int i = 0; i < cm.getMapSize(); i++)
+        if (i < palette.getMapSize() && cm.getRGB(i) == palette.getRGB(i))
+          map[i] = (byte)i;
+        else
+          map[i] = table[bgr555(cm.getRGB(i))];
+      int[] row = new int[width];
+      for (int y = 0; y < height; y++) {
+        image.getRaster().getSamples(0, y, width, 1, 0, row);
+        for (int x = 0; x < width; x++)
+          out[y * stride + x] = map[row[x] & 0xff];
+      }
+    } else {
+      int[] row = new int[width];
+      for (int y = 0; y < height; y++) {
+        image.getRGB(0, y, width, 1, row, 0, width);
+        for (int x = 0; x < width; x++)
+          out[y * stride + x] = table[bgr555(row[x])];
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+// Writes and applies IPS and BPS patches between the original ROM and a
+// RomImage. Only ranges the image marked as dirty are compared, so making a
+// patch never walks the unchanged parts of the ROM.
+public class Patch {
+  // IPS can't start a record at this offset, it reads as "EOF".
+  static final int IPS_EOF = 0x454f46;
+  // Unchanged bytes shorter than this are cheaper to copy than to start a
+  // new IPS record for (3 bytes offset + 2 bytes size).
+  static final int IPS_GAP = 6;
+  // Runs of the same byte at least this long become IPS RLE records.
+  static final int IPS_RLE = 9;
+
+// -------------------------------------------------------------------
+
+// Returns the first changed byte at or after addr, or -1 if there is none.
+  static int nextChanged (RomImage rom, int addr) {
+    while ((addr = rom.dirty.nextSetBit(addr)) >= 0) {
+      if (rom.read(addr) != rom.original(addr))
+        return addr;
+      addr++;
+    }
+    return -1;
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the end of the changed range starting at start: the range stops
+// after gap unchanged bytes in a row.
+  static int changedEnd (RomImage rom, int start, int gap) {
+    int end = start + 1, addr = start + 1;
+    while (addr < rom.length() && addr - end < gap) {
+      if (rom.dirty.get(addr) && rom.read(addr) != rom.original(addr))
+        end = addr + 1;
+      addr++;
+    }
+    return end;
+  }
+
+// -------------------------------------------------------------------
+
+// Number of bytes from addr equal to the byte at addr, at most max.
+  static int runLength (RomImage rom, int addr, int max) {
+    int value = rom.read(addr), run = 1;
+    while (run < max && rom.read(addr + run) == value)
+      run++;
+    return run;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes an IPS patch with every change in rom into file name.
+  static void writeIps (RomImage rom, String name) throws XMLError {
+    if (rom.length() > 0x1000000)
+      throw new XMLError ("IPS can't patch ROMs larger than 16 MB");
+
+    File tmp = new File(name + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeBytes("PATCH");
+      int start = nextChanged(rom, 0);
+      while (start >= 0) {
+        int end = changedEnd(rom, start, IPS_GAP);
+        while (start < end) {
+          // A record can't start at IPS_EOF: start it one byte earlier, as a
+          // literal that covers IPS_EOF, so the next record starts after it.
+          boolean atEof = start == IPS_EOF;
+          if (atEof)
+            start--;
+          int max = Math.min(end - start, 0xffff);
+          int len = atEof ? 0 : runLength(rom, start, max);
+
+          out.writeByte(start >> 16);
+          out.writeShort(start & 0xffff);
+          if (len >= IPS_RLE) {
+            out.writeShort(0);
+            out.writeShort(len);
+            out.writeByte(rom.read(start));
+          } else {
+            // Literal record, up to the next run worth its own RLE record.
+            len = atEof ? 2 : 1;
+            while (len < max && runLength(rom, start + len, Math.min(max - len, IPS_RLE)) < IPS_RLE)
+              len++;
+            out.writeShort(len);
+            for (int i = 0; i < len; i++)
+              out.writeByte(rom.read(start + i));
+          }
+          start += len;
+        }
+        start = nextChanged(rom, end);
+      }
+      out.writeBytes("EOF");
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+    RomImage.replace(tmp.toPath(), name);
+  }
+
+// -------------------------------------------------------------------
+
+// Applies the IPS patch in patch to rom.
+  static void applyIps (byte[] patch, RomImage rom) throws XMLError {
+    ByteBuffer in = ByteBuffer.wrap(patch);
+    byte[] magic = new byte[5];
+    in.get(magic);
+    if (!new String(magic).equals("PATCH"))
+      throw new XMLError ("Not an IPS patch");
+
+    while (true) {
+      int offset = ((in.get() & 0xFF) << 16) | (in.getShort() & 0xffff);
+      if (offset == IPS_EOF)
+        return;
+      int len = in.getShort() & 0xffff;
+      if (len == 0) {
+        len = in.getShort() & 0xffff;
+        int value = in.get() & 0xFF;
+        for (int i = 0; i < len; i++)
+          rom.write(offset + i, value);
+      } else {
+        rom.write(offset, patch, in.position(), len);
+        in.position(in.position() + len);
+      }
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Writes a BPS number: 7 bits per byte, with the top bit on the last byte.
+  static void writeNumber (OutputStream out, long data) throws IOException {
+    while (true) {
+      int x = (int)(data & 0x7f);
+      data >>= 7;
+      if (data == 0) {
+        out.write(0x80 | x);
+        return;
+      }
+      out.write(x);
+      data--;
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Reads a BPS number written by writeNumber.
+  static long readNumber (ByteBuffer in) {
+    long data = 0, shift = 1;
+    while (true) {
+      int x = in.get() & 0xFF;
+      data += (x & 0x7f) * shift;
+      if ((x & 0x80) != 0)
+        return data;
+      shift <<= 7;
+      data += shift;
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// CRC32 of the whole buffer.
+  static int crc (ByteBuffer buffer) {
+    CRC32 crc = new CRC32();
+    ByteBuffer all = buffer.duplicate();
+    all.clear();
+    crc.update(all);
+    return (int)crc.getValue();
+  }
+
+// -------------------------------------------------------------------
+
+// Writes a BPS patch with every change in rom into file name. Unchanged
+// ranges are copied from the source, changed ones are stored in the patch.
+// CRCs of source, target and patch let the patcher check all three.
+  static void writeBps (RomImage rom, String name) throws XMLError {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      bytes.write("BPS1".getBytes("US-ASCII"));
+      writeNumber(bytes, rom.length());
+      writeNumber(bytes, rom.length());
+      writeNumber(bytes, 0);
+
+      int pos = 0;
+      int start = nextChanged(rom, 0);
+      while (start >= 0) {
+        int end = changedEnd(rom, start, 2);
+        if (start > pos)
+          writeNumber(bytes, ((long)(start - pos - 1) << 2) | 0);  // SourceRead
+        writeNumber(bytes, ((long)(end - start - 1) << 2) | 1);    // TargetRead
+        for (int i = start; i < end; i++)
+          bytes.write(rom.read(i));
+        pos = end;
+        start = nextChanged(rom, end);
+      }
+      if (pos < rom.length())
+        writeNumber(bytes, ((long)(rom.length() - pos - 1) << 2) | 0);
+
+      ByteBuffer footer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      footer.putInt(crc(rom.original));
+      footer.putInt(crc(rom.data));
+      bytes.write(footer.array());
+      CRC32 patchCrc = new CRC32();
+      patchCrc.update(bytes.toByteArray());
+      footer.clear();
+      footer.putInt((int)patchCrc.getValue());
+      bytes.write(footer.array(), 0, 4);
+    } catch (IOException fe) {
+      throw new XMLError (fe.getMessage());
+    }
+
+    File tmp = new File(name + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      bytes.writeTo(out);
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+    RomImage.replace(tmp.toPath(), name);
+  }
+
+// -------------------------------------------------------------------
+
+// Applies the BPS patch in patch to rom, which must hold the patch source.
+// Throws XMLError if any CRC doesn't match.
+  static void applyBps (byte[] patch, RomImage rom) throws XMLError {
+    ByteBuffer in = ByteBuffer.wrap(patch).order(ByteOrder.LITTLE_ENDIAN);
+    byte[] magic = new byte[4];
+    in.get(magic);
+    if (!new String(magic).equals("BPS1"))
+      throw new XMLError ("Not a BPS patch");
+
+    CRC32 patchCrc = new CRC32();
+    patchCrc.update(patch, 0, patch.length - 4);
+    if ((int)patchCrc.getValue() != in.getInt(patch.length - 4))
+      throw new XMLError ("BPS patch is corrupted");
+    if (crc(rom.data) != in.getInt(patch.length - 12))
+      throw new XMLError ("BPS patch doesn't apply to this ROM");
+
+    long sourceSize = readNumber(in);
+    long targetSize = readNumber(in);
+    if (sourceSize != rom.length() || targetSize != rom.length())
+      throw new XMLError ("BPS patch changes the ROM size");
+    int metadata = (int)readNumber(in);
+    in.position(in.position() + metadata);
+
+    // The target is written over the source, so only actions that read the
+    // source at the same offset can be applied in place.
+    int out = 0;
+    while (in.position() < patch.length - 12) {
+      long action = readNumber(in);
+      int len = (int)(action >> 2) + 1;
+      switch ((int)(action & 3)) {
+        case 0:  // SourceRead
+          break;
+        case 1:  // TargetRead
+          rom.write(out, patch, in.position(), len);
+          in.position(in.position() + len);
+          break;
+        default:
+          throw new XMLError ("BPS copy actions are not supported");
+      }
+      out += len;
+    }
+
+    if (crc(rom.data) != in.getInt(patch.length - 8))
+      throw new XMLError ("BPS patch result doesn't match its CRC");
+  }
+}
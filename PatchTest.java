@@ -0,0 +1,55 @@
+import java.io.*;
+import java.nio.*;
+
+// Checks of Patch that need no ROM: patches are written from blank ROMs in
+// memory, applied to another blank ROM, and must reproduce the first one.
+public class PatchTest {
+
+// -------------------------------------------------------------------
+
+// A blank ROM of size bytes, in memory, whose writes show up as changes.
+  static RomImage blank (int size) {
+    RomImage rom = new RomImage(new byte[size]);
+    rom.original = ByteBuffer.wrap(new byte[size]);
+    return rom;
+  }
+
+// -------------------------------------------------------------------
+
+// Regression check of IPS records around IPS_EOF, where a record can't start:
+// changed runs starting there, with or without a changed byte before them,
+// must give patches that reproduce the ROM. Usage: java PatchTest
+  public static void main (String argv[]) throws Exception {
+    int[][] cases = {
+      // Address and value of each changed byte, then of a run of 16 bytes.
+      {Patch.IPS_EOF - 1, 1, Patch.IPS_EOF, 2},
+      {-1, 0, Patch.IPS_EOF, 2},
+      {Patch.IPS_EOF, 3, -1, 0},
+      {Patch.IPS_EOF - 1, 1, Patch.IPS_EOF + 1, 2},
+    };
+    File file = File.createTempFile("hikago-check", ".ips");
+    int failed = 0;
+    try {
+      for (int[] c : cases) {
+        RomImage rom = blank(Patch.IPS_EOF + 0x100);
+        if (c[0] >= 0)
+          rom.write(c[0], c[1]);
+        for (int i = 0; c[2] >= 0 && i < 16; i++)
+          rom.write(c[2] + i, c[3]);
+        Patch.writeIps(rom, file.getPath());
+        RomImage check = blank(rom.length());
+        Patch.applyIps(Script.readFile(file.getPath()), check);
+        if (!check.data.equals(rom.data)) {
+          System.out.println("IPS patch doesn't reproduce the ROM, with changes at " +
+                             Integer.toHexString(c[0]) + " and " + Integer.toHexString(c[2]));
+          failed++;
+        }
+      }
+    } finally {
+      file.delete();
+    }
+    System.out.println("Checked " + cases.length + " IPS patches: " + failed + " failed.");
+    if (failed > 0)
+      System.exit(1);
+  }
+}
@@ -0,0 +1,160 @@
+import java.util.*;
+
+// Every pointer in the original ROM, found in one pass over its aligned words:
+// any word between 0x08000000 and 0x08000000 + ROM size is taken to be one.
+// Pointers are grouped by the address they point to, in an open-addressing
+// table of ints: the slot of a target holds a range of locations, the
+// addresses of the words pointing to it.
+// Some code, tile or table words look like pointers by chance. Keeping a
+// string because of one only wastes its space, but writing a new address over
+// one corrupts it, so Target only moves words that are in a pointer table.
+public class PointerIndex {
+  static final int BASE = 0x8000000;
+
+  // Target of each slot, or -1 for an empty one.
+  int[] keys;
+  // Locations of the pointers to the target of slot i are
+  // locations[first[i]] .. locations[first[i] + count[i] - 1].
+  int[] first, count;
+  int[] locations;
+  // Every target, sorted.
+  int[] targets;
+  // Locations holding a pointer.
+  BitSet isPointer = new BitSet();
+
+// -------------------------------------------------------------------
+
+// Scans rom, as it was before any write.
+  PointerIndex (RomImage rom) {
+    int end = rom.length() & ~3;
+    int n = 0;
+    for (int addr = 0; addr < end; addr += 4)
+      if (target(rom, addr) >= 0) {
+        isPointer.set(addr);
+        n++;
+      }
+
+    int capacity = Integer.highestOneBit(Math.max(n, 1) * 2) * 2;
+    keys = new int[capacity];
+    first = new int[capacity];
+    count = new int[capacity];
+    locations = new int[n];
+    Arrays.fill(keys, -1);
+
+    // Count the pointers to each target, then give each target its range.
+    int distinct = 0;
+    for (int addr = isPointer.nextSetBit(0); addr >= 0; addr = isPointer.nextSetBit(addr + 1)) {
+      int slot = slot(target(rom, addr));
+      if (keys[slot] < 0) {
+        keys[slot] = target(rom, addr);
+        distinct++;
+      }
+      count[slot]++;
+    }
+    targets = new int[distinct];
+    int next = 0, t = 0;
+    for (int slot = 0; slot < capacity; slot++)
+      if (keys[slot] >= 0) {
+        first[slot] = next;
+        next += count[slot];
+        count[slot] = 0;
+        targets[t++] = keys[slot];
+      }
+    Arrays.sort(targets);
+    for (int addr = isPointer.nextSetBit(0); addr >= 0; addr = isPointer.nextSetBit(addr + 1)) {
+      int slot = slot(target(rom, addr));
+      locations[first[slot] + count[slot]++] = addr;
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Address the original word at addr points to, or -1 if it's not a pointer.
+  static int target (RomImage rom, int addr) {
+    int value = rom.originalWord(addr) - BASE;
+    return value >= 0 && value < rom.length() ? value : -1;
+  }
+
+// -------------------------------------------------------------------
+
+// Slot of target: the one holding it, or the empty one where it belongs.
+  int slot (int target) {
+    int mask = keys.length - 1;
+    int slot = (target * 0x9e3779b1) >>> 7 & mask;
+    while (keys[slot] >= 0 && keys[slot] != target)
+      slot = (slot + 1) & mask;
+    return slot;
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the locations of every pointer to target.
+  int[] pointersTo (int target) {
+    int slot = slot(target);
+    if (keys[slot] < 0)
+      return new int[0];
+    return Arrays.copyOfRange(locations, first[slot], first[slot] + count[slot]);
+  }
+
+// -------------------------------------------------------------------
+
+// Returns every target in [start, end), sorted.
+  int[] targetsIn (int start, int end) {
+    int from = Arrays.binarySearch(targets, start);
+    int to = Arrays.binarySearch(targets, end);
+    from = from < 0 ? -from - 1 : from;
+    to = to < 0 ? -to - 1 : to;
+    return Arrays.copyOfRange(targets, from, to);
+  }
+
+// -------------------------------------------------------------------
+
+// Returns the last target before addr, or -1 if there is none.
+  int targetBefore (int addr) {
+    int i = Arrays.binarySearch(targets, addr);
+    i = i < 0 ? -i - 1 : i;
+    return i > 0 ? targets[i - 1] : -1;
+  }
+
+// -------------------------------------------------------------------
+
+// Whether the pointer at addr is in a table: a run of consecutive pointers.
+  boolean inTable (int addr) {
+    return isPointer.get(addr) && (addr >= 4 && isPointer.get(addr - 4) || isPointer.get(addr + 4));
+  }
+
+// -------------------------------------------------------------------
+
+// Prints the pointer tables around the pointers in mapped, with the pointers
+// in them that aren't in mapped. A table is a run of consecutive pointers.
+  void reportUnmapped (BitSet mapped) {
+    BitSet seen = new BitSet();
+    int tables = 0, unmapped = 0;
+    for (int p = mapped.nextSetBit(0); p >= 0; p = mapped.nextSetBit(p + 1)) {
+      if (seen.get(p) || !isPointer.get(p))
+        continue;
+      int start = p, end = p + 4;
+      while (start >= 4 && isPointer.get(start - 4))
+        start -= 4;
+      while (isPointer.get(end))
+        end += 4;
+      seen.set(start, end);
+
+      int missing = 0, firstMissing = -1;
+      for (int q = start; q < end; q += 4)
+        if (!mapped.get(q)) {
+          missing++;
+          if (firstMissing < 0)
+            firstMissing = q;
+        }
+      if (missing > 0) {
+        System.out.println("Pointer table " + Integer.toHexString(start) + "-" + Integer.toHexString(end) +
+                           ": " + (end - start) / 4 + " pointers, " + missing + " not in the script (first " +
+                           Integer.toHexString(firstMissing) + ").");
+        tables++;
+        unmapped += missing;
+      }
+    }
+    System.out.println(unmapped + " pointers in " + tables + " tables are not in the script.");
+  }
+}
@@ -0,0 +1,177 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+// A ROM image backed by a memory-mapped file.
+// When extracting, the file is mapped read-only. When inserting, the file is
+// mapped copy-on-write: changes are visible to us, but never reach the original
+// file on disk. The result is written out with save(), or as a patch against
+// the original, which stays readable through original().
+public class RomImage {
+  ByteBuffer data;
+  // The file as it is on disk, when data may differ from it.
+  ByteBuffer original;
+  // Bytes that were written to. A written byte may still equal the original.
+  BitSet dirty = new BitSet();
+
+// -------------------------------------------------------------------
+
+// Maps file name into memory. Throws XMLError if it can't be found.
+  RomImage (String name, boolean writable) throws XMLError {
+    File f = new File(name);
+    if (!f.exists())
+      throw new XMLError ("File <" + name + "> not found");
+
+    try {
+      if (writable) {
+        try (FileChannel in = FileChannel.open(f.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+          data = in.map(FileChannel.MapMode.PRIVATE, 0, in.size());
+          original = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        } catch (AccessDeniedException ade) {
+          // ROM is read-only on disk: copy-on-write needs a writable channel,
+          // so fall back to a private copy on heap.
+          data = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+          try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            original = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+          }
+        }
+      } else {
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+          data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+        original = data;
+      }
+    } catch (IOException fe) {
+      throw new XMLError ("Can't map <" + name + ">: " + fe.getMessage());
+    }
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    original.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+// -------------------------------------------------------------------
+
+// An image of bytes in memory, such as compressed data that isn't in a ROM.
+  RomImage (byte[] bytes) {
+    data = ByteBuffer.wrap(bytes);
+    original = data;
+    data.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+// -------------------------------------------------------------------
+
+// Size of image in bytes.
+  int length () {
+    return data.capacity();
+  }
+
+// -------------------------------------------------------------------
+
+// Reads an unsigned byte from addr.
+  int read (int addr) {
+    return data.get(addr) & 0xFF;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes the low 8 bits of value to addr.
+  void write (int addr, int value) {
+    data.put(addr, (byte)value);
+    markDirty(addr, addr + 1);
+  }
+
+// -------------------------------------------------------------------
+
+// Reads a 32-bit little endian word from addr.
+  int readWord (int addr) {
+    return data.getInt(addr);
+  }
+
+// -------------------------------------------------------------------
+
+// Writes a 32-bit little endian word to addr.
+  void writeWord (int addr, int value) {
+    data.putInt(addr, value);
+    markDirty(addr, addr + 4);
+  }
+
+// -------------------------------------------------------------------
+
+// Copies len bytes starting from addr into buffer.
+  void read (int addr, byte[] buffer, int offset, int len) {
+    data.get(addr, buffer, offset, len);
+  }
+
+// -------------------------------------------------------------------
+
+// Copies len bytes from buffer into the image, starting at addr.
+  void write (int addr, byte[] buffer, int offset, int len) {
+    data.put(addr, buffer, offset, len);
+    markDirty(addr, addr + len);
+  }
+
+// -------------------------------------------------------------------
+
+  synchronized void markDirty (int start, int end) {
+    dirty.set(start, end);
+  }
+
+// -------------------------------------------------------------------
+
+// Reads an unsigned byte from addr, as it was before any write.
+  int original (int addr) {
+    return original.get(addr) & 0xFF;
+  }
+
+// -------------------------------------------------------------------
+
+// Reads a 32-bit little endian word from addr, as it was before any write.
+  int originalWord (int addr) {
+    return original.getInt(addr);
+  }
+
+// -------------------------------------------------------------------
+
+// Undoes every write, so the image is the original file again.
+  void revert () {
+    int start = 0;
+    while ((start = dirty.nextSetBit(start)) >= 0) {
+      int end = dirty.nextClearBit(start);
+      data.put(start, original, start, end - start);
+      start = end;
+    }
+    dirty.clear();
+  }
+
+// -------------------------------------------------------------------
+
+// Writes the whole image into file name, straight from the mapped buffer.
+// The file is replaced atomically, so nobody ever reads half a ROM.
+  void save (String name) throws XMLError {
+    ByteBuffer out = data.duplicate();
+    out.clear();
+    Path tmp = Paths.get(name + ".tmp");
+    try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (out.hasRemaining())
+        fc.write(out);
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+    replace(tmp, name);
+  }
+
+// -------------------------------------------------------------------
+
+// Moves the finished file tmp over file name in one step.
+  static void replace (Path tmp, String name) throws XMLError {
+    try {
+      Files.move(tmp, Paths.get(name), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+  }
+}
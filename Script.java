@@ -8,31 +8,40 @@ import java.io.*;
 import java.lang.*;
 import java.nio.charset.*;
 import java.awt.image.*;
-import javax.xml.parsers.*;
 import javax.imageio.*;
-import org.xml.sax.*;  
-import org.w3c.dom.*;
 
 public class Script {
   
 // -------------------------------------------------------------------  
 // GLOBALS
 
-  static int[] gameData;
+  // The ROM being read or written.
+  static Target target;
   // Sets whether we are reading from or writing into ROM.
   static Boolean extract;
-  // A cursor into gameData for writing text.
-  static int freePos;
+  // What insertion writes: the whole ROM ("insert"), or an "ips" or "bps" patch.
+  static String output;
+  // Hash of everything, besides its own text, that encoding a text depends on,
+  // and of all that but the table and font.
+  static long textFingerprint, controlFingerprint;
+  // How script characters become bytes.
+  static TableCodec table;
+  // Widths of the proportional font of the game, or null to measure texts in cells.
+  static FontWidths font;
   static ArrayList<ControlString> controlStrings;
-  // Storage optimization: for strings written to end of ROM, store their address.
-  // When another entry has the same string, we can then modify the pointer towards the
-  // already written string, instead of writing the string again.
-  static HashMap<String, Integer> writtenStrings = new HashMap<String, Integer>();
+  // controlStrings compiled into a trie.
+  static ControlStringTable controlTable;
+  // Scratch space for expanding and wrapping text, one per encoding thread.
+  static ThreadLocal<TextBlock> textBlocks = new ThreadLocal<TextBlock>() {
+    protected TextBlock initialValue () {
+      return new TextBlock();
+    }
+  };
 
 // -------------------------------------------------------------------  
 
 // Reads file as a byte array.
-  public static int[] readFile (String name) throws XMLError {
+  public static byte[] readFile (String name) throws XMLError {
     DataInput in = null;
     int size;    
     File f;
@@ -43,175 +52,92 @@ public class Script {
       throw new XMLError ("File <" + name + "> not found");
       
     size = (int)(f.length());    
-    int[] buffer = new int[size];
     byte[] byteData = new byte[size];
     try {
       in = new DataInputStream (new FileInputStream (name));
       in.readFully(byteData, 0, size);  
-      for (int i = 0; i < size; i++)
-        buffer[i] = (int)byteData[i] & 0xFF;
     } catch (IOException fe) {
       fe.printStackTrace();
     }     
     
-    return buffer;
+    return byteData;
   }
     
 // -------------------------------------------------------------------  
 
-// Writes buffer as a byte array into file.
-  public static void writeFile (int[] buffer, String name) throws XMLError {
-    DataOutputStream out = null;
-        
-    // Write file to disk
-    byte[] byteData = new byte[gameData.length];
-    for (int i = 0; i < gameData.length; i++)
-      byteData[i] = (byte)gameData[i];
-    try {
-      out = new DataOutputStream (new FileOutputStream (name));
-      out.write(byteData);  
-      out.close();
-    } catch (IOException fe) {
-      fe.printStackTrace();
-    }     
-    
-    return;
-  }
-    
-// -------------------------------------------------------------------
-
-// Reads 4 bytes from gameData, starting from given location, and constructs
-// an address from them.
-  public static int readAddressFrom (int location) {
-	int address = 0;
-    for (int i = 0; i < 4; i++)
-      address |= gameData[location + i] << (i*8);
-    return address - 0x8000000;  
-  }
-
-// -------------------------------------------------------------------  
-
-// Writes the given address as 4 bytes to gameData, starting from given location.
-  public static void writeAddressTo (int address, int location) {
-	address += 0x8000000;
-	for (int i = 0; i < 4; i++)
-	  gameData[location + i] = (address >> (i*8)) & 0xFF;  
-  }
-  
-// -------------------------------------------------------------------  
-
-// Reads 48 bytes from address (index * 48) to construct an IndexColorModel with 16 colors.
-  public static IndexColorModel readPalette (String name, int index) throws XMLError {
-    int[] rawPalette;
-    byte[] r, g, b;
-    
-    rawPalette = readFile(name);
-    r = new byte[16];
-    g = new byte[16];
-    b = new byte[16];
-    for (int i = 0; i < 16; i++) {
-      r[i] = (byte) rawPalette[index*16*3 + i*3 + 0];
-      g[i] = (byte) rawPalette[index*16*3 + i*3 + 1];
-      b[i] = (byte) rawPalette[index*16*3 + i*3 + 2];
-    } 
-    IndexColorModel finalPalette = new IndexColorModel (8, 16, r, g, b);
-    
-    return finalPalette;
-  }
-
-// -------------------------------------------------------------------  
-
-// Sets pixel (x, y) of image to value.
-  public static void mySetPixel (BufferedImage image, int x, int y, int value) {
-    int pixel[];
-    WritableRaster wr = image.getRaster();
-    
-    pixel = new int [1];
-    pixel[0] = value;
-    wr.setPixel(x, y, pixel);
-  }
-
-// -------------------------------------------------------------------  
-
-// Gets pixel (x, y) from image.
-  public static int myGetPixel (BufferedImage image, int x, int y) {
-    int pixel[];
-    WritableRaster wr = image.getRaster();
-    
-    pixel = new int [1];
-    pixel = wr.getPixel(x, y, pixel);
-    return pixel[0];
-  }
-
-// -------------------------------------------------------------------  
-
-// Reads an image's information from node, reads the image from disk, then
-// writes the image bytes into gameData.
-  public static void writeGraphic (Node n) throws XMLError {
-    int addr, width, height, index;
+// Reads the image described by g from disk, and returns its tiles, compressed
+// if g is, or null if there is no image. Runs on a graphics worker thread.
+  public static byte[] encodeGraphic (GraphicEntry g, TileCodec codec) throws XMLError {
+    int addr;
     String name;
-    IndexColorModel palette;
     BufferedImage image = null;
     
-    addr = Integer.parseInt(XMLHelper.getTextInChildElement(n, "addr"), 16);
-    width = Integer.parseInt(XMLHelper.getTextInChildElement(n, "width"));
-    height = Integer.parseInt(XMLHelper.getTextInChildElement(n, "height"));
-    name = "graphics/_" + XMLHelper.getTextInChildElement(n, "name") + ".bmp";
+    addr = g.addr;
+    name = "graphics/_" + g.name + ".bmp";
     
     File f = new File(name);
     if (!f.exists())
-      return;
-      
-    try {
-      image = ImageIO.read(f);
-    } catch (IOException fe) {
-      fe.printStackTrace();
-    }     
-
-    for (int i = 0; i < height*width*4*8; i++)
-      gameData[addr+i] = 0;
-
-    for (int hh = 0; hh < height; hh++)
-      for (int ww = 0; ww < width; ww++)
-        for (int j = 0; j < 8; j++) 
-          for (int i = 0; i < 4; i++)
-            for (int ii = 0; ii < 2; ii++) 
-              gameData[addr + i + j*4 + ww*4*8 + hh*4*8*width] |=
-                (myGetPixel(image, ww*8 + i*2 + ii, hh*8 + j) & 0xf) << (ii*4);
-
-    System.out.println ("inserted graphic <" + name + ">.");
+      return null;
+    byte[] file = readFile(name);
+
+    // Unchanged images reuse the tiles from the previous run.
+    long hash = BuildCache.hash(BuildCache.hash(BuildCache.hash(BuildCache.hash(
+                  BuildCache.hash(), addr), g.width), g.height), file);
+    hash = BuildCache.hash(BuildCache.hash(BuildCache.hash(hash, g.bpp),
+             (g.layout2d ? 1 : 0) | (g.hflip ? 2 : 0) | (g.vflip ? 4 : 0)), g.compression);
+    IndexColorModel palette = null;
+    if (g.remap) {
+      palette = Palette.get(g, target.gameData);
+      for (int i = 0; i < palette.getMapSize(); i++)
+        hash = BuildCache.hash(hash, palette.getRGB(i));
+    }
+    BuildCache.Entry cached = target.cache == null ? null : target.cache.getGraphic(hash);
+    byte[] tiles;
+    if (cached != null) {
+      tiles = cached.bytes;
+    } else {
+      try {
+        image = ImageIO.read(new ByteArrayInputStream(file));
+      } catch (IOException fe) {
+        fe.printStackTrace();
+      }     
+      if (image == null || image.getWidth() < g.width*8 || image.getHeight() < g.height*8)
+        throw new XMLError ("Image <" + name + "> is not a " + g.width*8 + "x" + g.height*8 +
+                            " bitmap, in graphic at line " + g.line);
+      if (palette != null)
+        image = Palette.remap(image, palette);
+      tiles = codec.encode(image);
+      if (g.compression != 0)
+        tiles = Compression.compress(tiles, g.compression);
+    }
+    if (target.cache != null)
+      target.cache.putGraphic(hash, tiles);
+    return tiles;
   }
  
 // -------------------------------------------------------------------  
 
-// Reads an image's information from node, reads the image from gameData, then
-// writes the image to disk.
-// There seems to be 32 bytes per pixel?
-  public static void readGraphic (Node n) throws XMLError {
-    int addr, width, height, index;
+// Reads the image described by g from gameData, then writes the image to disk.
+// Runs on a graphics worker thread.
+  public static void readGraphic (GraphicEntry g) throws XMLError {
     String name;
     IndexColorModel palette;
     BufferedImage image;
+    TileCodec codec = new TileCodec(g);
     
-    addr = Integer.parseInt(XMLHelper.getTextInChildElement(n, "addr"), 16);
-    width = Integer.parseInt(XMLHelper.getTextInChildElement(n, "width"));
-    height = Integer.parseInt(XMLHelper.getTextInChildElement(n, "height"));
-    name = XMLHelper.getTextInChildElement(n, "name") + ".bmp";
-    index = Integer.parseInt(XMLHelper.getAttributeInChildElement(n, "palette", "index"));
-    palette = readPalette(XMLHelper.getTextInChildElement(n, "palette"), index);
+    name = g.name + ".bmp";
+    palette = Palette.get(g, target.gameData);
     
-    image = new BufferedImage (width*8, height*8, BufferedImage.TYPE_BYTE_BINARY, palette);
-
-    for (int hh = 0; hh < height; hh++)
-      for (int ww = 0; ww < width; ww++)
-        for (int j = 0; j < 8; j++) 
-          for (int i = 0; i < 4; i++)
-            for (int ii = 0; ii < 2; ii++) 
-              mySetPixel (image,
-                ww*8 + i*2 + ii, // x
-                hh*8 + j, // y
-                0xf & (gameData[addr + (ww + hh*width)*4*8 + j*4 + i] >> (ii*4)) // value
-              );
+    byte[] tiles;
+    if (g.compression != 0) {
+      tiles = Compression.decompress(target.gameData, g.addr, false);
+      if (tiles.length < codec.size())
+        throw new XMLError ("Compressed graphic at line " + g.line + " holds " + tiles.length +
+                            " bytes, " + codec.size() + " needed");
+    } else {
+      tiles = codec.read(target.gameData, g.addr);
+    }
+    image = codec.decode(tiles, palette);
               
     //System.out.println (((IndexColorModel)(image.getColorModel())).getMapSize());
     
@@ -220,176 +146,149 @@ public class Script {
     } catch (IOException fe) {
       fe.printStackTrace();
     }     
-    
-    System.out.println ("extracted graphic <" + name + ">.");
   }
 
 // -------------------------------------------------------------------  
 
-// Reads <pointer> from node,
+// Reads <pointer> from t,
 // reads 4 bytes from gameData[pointer] that forms pointerValue, 
 // reads bytes from gameData[pointerValue], 
 // writes to a .sjs file,
 // until 0 is met.
-  public static void readText (Node n) throws XMLError {
-    int pointerAddress, pointerValue;
-    DataOutputStream out;
+  public static void readText (TextEntry t) throws XMLError {
+    int pointerAddress, pointerValue, end;
     
-    String pointerStr = XMLHelper.getAttribute(n, "pointer");
+    String pointerStr = t.pointerStr;
   
-    pointerAddress = Integer.parseInt(pointerStr, 16);
-    pointerValue = readAddressFrom(pointerAddress);
+    pointerAddress = t.pointer;
+    pointerValue = target.readAddressFrom(pointerAddress);
+    target.scripted.set(pointerAddress);
+
+    // Characters are 2 bytes: only a 0 at an even offset ends the string.
+    end = pointerValue + target.originalLength(pointerValue);
+    if ((end - pointerValue) % 2 != 0) {
+      // The terminator is read as the second byte of a character.
+      end++;
+      while (target.gameData.read(end) != 0)
+        end += 2;
+    }
+    byte[] bytes = new byte[end - pointerValue];
+    target.gameData.read(pointerValue, bytes, 0, bytes.length);
 
-    try {
-      out = new DataOutputStream (new FileOutputStream (pointerStr + ".sjs"));
-      while (gameData[pointerValue] != 0) {
-        out.writeByte(gameData[pointerValue++]);  
-        out.writeByte(gameData[pointerValue++]);  
-      }
-      out.close();
+    try (FileOutputStream out = new FileOutputStream (pointerStr + ".sjs")) {
+      out.write(bytes);
     } catch (IOException fe) {
       fe.printStackTrace();
     }     
-    
-    System.out.println ("extracted text <" + pointerStr + ">.");    
+    target.metrics.count("texts", 1);
   }    
 
 // -------------------------------------------------------------------  
 
-// Reads <pointer> from node, writes 4 bytes to gameData[pointer] that
-// forms pointerValue (freePos + 0x80000000), and reads text from <data> and writes bytes to gameData[pointerValue].
-// freePos is updated after writing.
-  public static void writeText (Node n) throws XMLError {
-    int pointerAddress, pointerValue;
-    TextBlock text;
-       
-    String pointerStr = XMLHelper.getAttribute(n, "pointer");
-    String translated = XMLHelper.getText(n);
-    if (translated.equals("")) return;
-  
-    pointerAddress = Integer.parseInt(pointerStr, 16);
-	pointerValue = readAddressFrom(pointerAddress);
-  
-    // First, attempt to write translated text into position of original text.
-    int readPtr = pointerValue;
-    while (gameData[readPtr] != 0) readPtr++;
-    int originalLength = readPtr - pointerValue + 1; // Including \0
-  
-    // Replace control strings with corresponding bytes.
-    for (int i = 0; i < controlStrings.size(); i++) {
-      translated = translated.replace(
-        controlStrings.get(i).controlString, 
-        controlStrings.get(i).controlBytes
-      );
+// Replaces control strings in t, and wraps and encodes the result into bytes.
+// This only depends on t, controlStrings and the original ROM, so many entries
+// may be encoded in parallel. Returns null for an empty translation.
+// An entry that didn't change since the previous run is taken from the cache.
+  public static EncodedText encodeText (TextEntry t) throws XMLError {
+    if (t.text.equals("")) return null;
+
+    long start = System.nanoTime();
+    long hash = BuildCache.hash(BuildCache.hash(textFingerprint, t.pointer), t.text);
+    BuildCache.Entry cached = target.cache == null ? null : target.cache.getText(hash);
+    if (cached != null) {
+      target.metrics.time("encode", start);
+      return new EncodedText(t, cached.bytes, hash, cached.address);
     }
   
-    text = new TextBlock(translated.split("(?<=.) (?=.)")); // This allows a preceding space and a trailing space
-    int newLength = text.size(); // Also including \0
+    // Replace control strings with corresponding bytes.
+    TextBlock text = textBlocks.get();
+    text.clear();
+    text.font = font;
+    controlTable.expand(t.text, table, text, t.line);
   
-    if (newLength <= originalLength) {
-      // Translated text is shorter: able to overwrite original text
-      text.insert(gameData, pointerValue);
-    } else {
-      // Translated text is longer: possibly write to end of ROM
-      
-      // Have we seen the same string before?
-      if (writtenStrings.containsKey(translated)) {
-        // Yes: modify pointer instead of write string
-        pointerValue = writtenStrings.get(translated);
-		writeAddressTo(pointerValue, pointerAddress);
-        System.out.println("===================================================");
-        System.out.println("Text " + pointerStr + " reuses a previously written string; " + newLength + " bytes saved.");
-      } else {
-        // No: write string and log
-        System.out.println("===================================================");
-        System.out.println("Text " + pointerStr + " is written to end of ROM.");
-        System.out.println("Original text is " + originalLength + " bytes, but translated text is " + newLength + " bytes.");
-        System.out.println("Translated text: " + XMLHelper.getText(n));
-        pointerValue = freePos;
-        writeAddressTo(pointerValue, pointerAddress);
-        freePos = text.insert(gameData, freePos);
-        writtenStrings.put(translated, pointerValue);
-      }
-    }
-  }    
+    // Wrapping aims for a layout that still fits the original string.
+    text.wrap(target.budget(t.pointer), t.line);
+    EncodedText e = new EncodedText(t, text.getBytes(), hash, -1);
+    e.warning = text.warning;
+    target.metrics.time("encode", start);
+    return e;
+  }
 
 // -------------------------------------------------------------------  
 
-// Processes all <graphic>s and <text>s in node. May read from or write into ROM, depending on
+// Receives entries from ScriptReader. May read from or write into ROM, depending on
 // value of extract.
-  public static void readTranslation (Node n) throws XMLError {
-    NodeList list;
-    
-    list = n.getChildNodes();
-    
-    // Search for the game rom
-    gameData = readFile(XMLHelper.getTextInChildElement(n, "game"));    
-    System.out.println ("Found <" + XMLHelper.getTextInChildElement(n, "game") + ">, " + gameData.length + " bytes.");
-        
-    // Process Graphics
-    ArrayList<Node> allGraphics = XMLHelper.recursiveFindElements(n, "graphic");
-    for (int i = 0; i < allGraphics.size(); i++) {
-      if (extract)
-        readGraphic(allGraphics.get(i));
-      else
-        writeGraphic(allGraphics.get(i));
+  static class Translation implements EntryHandler {
+    TextPipeline pipeline = new TextPipeline();
+    GraphicPipeline graphics = new GraphicPipeline();
+
+    // Search for the game rom. When inserting again into the same rom, it's
+    // already mapped: just undo the previous run.
+    public void game (String name) throws XMLError {
+      if (target != null && !extract && name.equals(target.game)) {
+        target.reset();
+        target.cache = target.cache.next();
+        return;
+      }
+      target = new Target(name, !extract, System.out);
+      if (!extract)
+        target.cache = new BuildCache(target.outputName("cache"), target.romCrc);
     }
-  
-    // Process Text
-    ArrayList<Node> allStrings = XMLHelper.recursiveFindElements(n, "text");
-    for (int i = 0; i < allStrings.size(); i++) {
-      if (extract)
-        readText(allStrings.get(i));
-      else
-        writeText(allStrings.get(i));
+
+    public void table (String name) throws XMLError {
+      useTable(TableCodec.load(name));
     }
-  
-    // Write back
-    if (!extract) {
-      writeFile(gameData, "_" + XMLHelper.getTextInChildElement(n, "game"));
-      System.out.println ("Finished <_" + XMLHelper.getTextInChildElement(n, "game") + ">.");
-    }     
-    
-  }
 
-// -------------------------------------------------------------------  
+    public void font (FontEntry f) throws XMLError {
+      useFont(FontWidths.read(f, target.gameData));
+    }
 
-// Processes all <translation>s in node.
-  public static void readDocument (Node n) throws XMLError {
-    NodeList list;
-    
-    // Check for document-type
-    if (n.getNodeType() != Document.DOCUMENT_NODE) 
-      throw new XMLError("Document not found");
-      
-    list = n.getChildNodes();
-    for (int i = 0; i < list.getLength(); i++) 
-      if (list.item(i).getNodeType() == Document.ELEMENT_NODE &&
-          list.item(i).getNodeName().equals("translation"))
-        readTranslation(list.item(i));
-  }
+    public void graphic (GraphicEntry g) throws XMLError {
+      // Keep document order: texts before this graphic are written first.
+      pipeline.drain();
+      graphics.submit(g, extract);
+    }
 
-// -------------------------------------------------------------------  
+    public void free (int start, int end) {
+      target.freeSpace.add("declared", start, end);
+    }
 
-  public static void main(String argv[]) {
-    // Check for command line usage
-    if (argv.length != 2) {
-      System.err.println("Usage: java Script filename (extract/insert)");
-      System.exit(1);
+    public void text (TextEntry t) throws XMLError {
+      if (extract) {
+        readText(t);
+      } else {
+        // Graphics before this text are written first.
+        graphics.drain();
+        pipeline.submit(t);
+      }
     }
-  
-    if (!argv[1].equals("extract") && !argv[1].equals("insert")) {
-      System.err.println("Usage: java Script filename (extract/insert)");
-      System.exit(1);
+
+    public void unreadable (XMLError xe) throws XMLError {
+      throw xe;
     }
-    
-    // Init globals
-    gameData = null;
-    extract = argv[1].equals("extract");
-    freePos = 0x7fade0;
-    int startFreePos = 0x7fade0;
+
+    // Write back
+    public void end () throws XMLError {
+      graphics.drain();
+      pipeline.drain();
+      if (extract)
+        target.pointers.reportUnmapped(target.scripted);
+      if (!extract) {
+        target.placeRelocated();
+        target.writeOutput(output);
+        target.cache.save();
+        target.metrics.count("cache hits", target.cache.hits);
+      }
+      target.metrics.finish(target.out, target.outputName("metrics.json"));
+    }
+  }
+
+// -------------------------------------------------------------------  
+
+// Registers the control strings used by the script.
+  public static void initControlStrings () {
     controlStrings = new ArrayList<ControlString>();
-    controlStrings.add(new ControlString("@NAME@", ControlString.name));
+    controlStrings.add(new ControlString("@NAME@", ControlString.name, 8));
     controlStrings.add(new ControlString("@NEWLINE@", new char[]{0x81, 0xab}));
     controlStrings.add(new ControlString("@DPAD@", new char[]{0x84, 0x42}));
     controlStrings.add(new ControlString("@ABUTTON@", new char[]{0x87, 0x55, 0x84, 0x43, 0x87, 0x54}));
@@ -402,35 +301,109 @@ public class Script {
     controlStrings.add(new ControlString("@RED@", new char[]{0x87, 0x55}));
     controlStrings.add(new ControlString("@YELLOW@", new char[]{0x87, 0x56}));
     controlStrings.add(new ControlString("@ENDCOLOR@", new char[]{0x87, 0x54}));
-    
-    // Create xml factory
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    
-    // Parse the document and check for errors
-    try {
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document document = builder.parse( new File(argv[0]) );
-      readDocument (document);
-    
-      int totalFreeBytes = 0x800000 - startFreePos;
-      int usedFreeBytes = freePos - startFreePos;
-      System.out.println(usedFreeBytes + " of " + totalFreeBytes + " end-of-ROM bytes used.");
- 
-    } catch (SAXException sxe) {
-      // Error generated during parsing
-      Exception  x = sxe;
-      if (sxe.getException() != null)
-        x = sxe.getException();
-      x.printStackTrace();
+    controlTable = new ControlStringTable(controlStrings);
+    controlFingerprint = BuildCache.hash(BuildCache.hash(BuildCache.hash(BuildCache.hash(),
+                           TextBlock.CELLS), TextBlock.LINES), TextBlock.LAYOUT);
+    for (ControlString cs : controlStrings)
+      controlFingerprint = BuildCache.hash(BuildCache.hash(BuildCache.hash(controlFingerprint,
+                             cs.controlString), cs.controlBytes), cs.width);
+    font = null;
+    useTable(TableCodec.shiftJis());
+  }
 
-    } catch (ParserConfigurationException pce) {
-      // Parser with specified options can't be built
-      pce.printStackTrace();
+// -------------------------------------------------------------------  
+
+// Encodes texts with table from now on.
+  public static void useTable (TableCodec t) {
+    table = t;
+    textFingerprint = fingerprint();
+  }
+
+// -------------------------------------------------------------------  
+
+// Measures texts with font from now on, or in cells if it's null.
+  public static void useFont (FontWidths f) {
+    font = f;
+    textFingerprint = fingerprint();
+  }
+
+// -------------------------------------------------------------------  
+
+  static long fingerprint () {
+    long hash = BuildCache.hash(controlFingerprint, table.hash);
+    return font == null ? hash : BuildCache.hash(hash, font.hash);
+  }
+
+// -------------------------------------------------------------------  
+
+// Flight Recorder file of a run of script filename: its name with a leading
+// "_" and a .jfr extension, next to it.
+  public static String recordingName (String filename) {
+    File f = new File(filename);
+    return new File(f.getParentFile(), "_" + f.getName().replaceFirst("\\.[^.]*$", "") + ".jfr").getPath();
+  }
+
+// -------------------------------------------------------------------  
+
+// Processes the whole script once. The rom and cache are kept for the next run.
+  public static void run (String filename) throws XMLError {
+    Palette.clear();
+    font = null;
+    useTable(TableCodec.shiftJis());
+    Metrics.record();
+    ScriptReader.read(filename, new Translation());
+    Metrics.dump(recordingName(filename));
+  }
+
+// -------------------------------------------------------------------  
 
-    } catch (IOException ioe) {
-      // I/O error
-      ioe.printStackTrace();
+  public static void main(String argv[]) {
+    String usage = "Usage: java Script filename (extract/dump/insert/ips/bps/validate/verify/watch [ips/bps]/" +
+                   "batch insert/ips/bps rom...)";
+    // Check for command line usage
+    boolean batch = argv.length >= 4 && argv[1].equals("batch");
+    if (argv.length < 2 || (!batch && argv.length > (argv[1].equals("watch") ? 3 : 2))) {
+      System.err.println(usage);
+      System.exit(1);
+    }
+  
+    if (batch ? !Arrays.asList("insert", "ips", "bps").contains(argv[2]) :
+        !Arrays.asList("extract", "dump", "insert", "ips", "bps", "validate", "verify", "watch").contains(argv[1]) ||
+        (argv.length == 3 && !Arrays.asList("ips", "bps").contains(argv[2]))) {
+      System.err.println(usage);
+      System.exit(1);
+    }
+    
+    // Init globals
+    target = null;
+    extract = argv[1].equals("extract") || argv[1].equals("dump");
+    output = argv[1];
+    if (output.equals("watch"))
+      output = argv.length == 3 ? argv[2] : "insert";
+    if (batch)
+      output = argv[2];
+    initControlStrings();
+    
+    if (argv[1].equals("watch")) {
+      Watcher.watch(argv[0]);
+      return;
+    }
 
+    // Stream the document and check for errors
+    try {
+      if (argv[1].equals("dump"))
+        ScriptWriter.dump(argv[0], "_" + new File(argv[0]).getName());
+      else if (batch)
+        Batch.run(argv[0], output, Arrays.copyOfRange(argv, 3, argv.length));
+      else if (argv[1].equals("validate")) {
+        if (Validator.run(argv[0]) > 0)
+          System.exit(1);
+      } else if (argv[1].equals("verify")) {
+        if (Verifier.run(argv[0]) > 0)
+          System.exit(1);
+      } else {
+        run(argv[0]);
+      }
     } catch (XMLError xe) {
       // XML error
       xe.printStackTrace();
@@ -0,0 +1,276 @@
+import java.io.*;
+import javax.xml.stream.*;
+
+// Streams a script through StAX, handing each <game>, <table>, <font>, <graphic> and <text>
+// to an EntryHandler as soon as it is complete. Only the current entry is
+// kept in memory, so the handler can start patching while the rest of the
+// file is still being read.
+public class ScriptReader {
+  static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+// -------------------------------------------------------------------  
+
+// Reads the whole file, calling handler for every entry in document order.
+  public static void read (String filename, EntryHandler handler) throws XMLError {
+    XMLStreamReader r = null;
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(filename))) {
+      r = factory.createXMLStreamReader(in);
+      readDocument(r, handler);
+    } catch (FileNotFoundException fe) {
+      throw new XMLError ("File <" + filename + "> not found");
+    } catch (IOException ioe) {
+      throw new XMLError ("Can't read <" + filename + ">: " + ioe.getMessage());
+    } catch (XMLStreamException xse) {
+      // Error generated during parsing
+      throw new XMLError (xse.getMessage());
+    } finally {
+      if (r != null) {
+        try {
+          r.close();
+        } catch (XMLStreamException xse) {
+        }
+      }
+    }
+  }
+
+// -------------------------------------------------------------------  
+
+// Checks for the <translation> root, then processes everything inside it.
+  static void readDocument (XMLStreamReader r, EntryHandler handler)
+      throws XMLError, XMLStreamException {
+    r.nextTag();
+    if (!r.getLocalName().equals("translation"))
+      throw new XMLError("Document not found");
+
+    boolean foundGame = false, foundText = false;
+    int depth = 1;
+    while (depth > 0) {
+      int event = r.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT)
+        continue;
+
+      String name = r.getLocalName();
+      if (name.equals("game")) {
+        handler.game(XMLHelper.getText(r));
+        foundGame = true;
+      } else if (name.equals("table")) {
+        // Every text is encoded with the same table.
+        if (foundText)
+          throw new XMLError ("Element table at line " + XMLHelper.getLine(r) + " comes after a <text>");
+        handler.table(XMLHelper.getText(r));
+      } else if (name.equals("font")) {
+        checkGame(r, foundGame);
+        if (foundText)
+          throw new XMLError ("Element font at line " + XMLHelper.getLine(r) + " comes after a <text>");
+        FontEntry f;
+        try {
+          f = readFont(r);
+        } catch (XMLError xe) {
+          handler.unreadable(xe);
+          continue;
+        }
+        handler.font(f);
+      } else if (name.equals("graphic")) {
+        checkGame(r, foundGame);
+        GraphicEntry g;
+        try {
+          g = readGraphic(r);
+        } catch (XMLError xe) {
+          handler.unreadable(xe);
+          continue;
+        }
+        handler.graphic(g);
+      } else if (name.equals("free")) {
+        // The whole element is read before its attributes are checked, so
+        // reading goes on after a bad one.
+        int line = XMLHelper.getLine(r);
+        String startStr = r.getAttributeValue(null, "start"), endStr = r.getAttributeValue(null, "end");
+        r.getElementText();
+        int start, end;
+        try {
+          start = XMLHelper.parseInt(attribute(startStr, "start", "free", line), 16, "start", line);
+          end = XMLHelper.parseInt(attribute(endStr, "end", "free", line), 16, "end", line);
+        } catch (XMLError xe) {
+          handler.unreadable(xe);
+          continue;
+        }
+        handler.free(start, end);
+      } else if (name.equals("text")) {
+        checkGame(r, foundGame);
+        foundText = true;
+        int line = XMLHelper.getLine(r);
+        String pointer = r.getAttributeValue(null, "pointer");
+        String text = r.getElementText();
+        TextEntry t;
+        try {
+          t = new TextEntry(attribute(pointer, "pointer", "text", line), text, line);
+        } catch (XMLError xe) {
+          handler.unreadable(xe);
+          continue;
+        }
+        handler.text(t);
+      } else {
+        // Any other element just groups entries: look inside it.
+        depth++;
+      }
+    }
+
+    handler.end();
+  }
+
+// -------------------------------------------------------------------  
+
+// Entries need the ROM, so <game> must come before them.
+  static void checkGame (XMLStreamReader r, boolean foundGame) throws XMLError {
+    if (!foundGame)
+      throw new XMLError ("Element " + r.getLocalName() + " at line " + XMLHelper.getLine(r) +
+                          " comes before <game>");
+  }
+
+// -------------------------------------------------------------------  
+
+// Reads the children of a <graphic> element, leaving the reader at its end tag.
+  static GraphicEntry readGraphic (XMLStreamReader r) throws XMLError, XMLStreamException {
+    GraphicEntry g = new GraphicEntry();
+    String addr = null, width = null, height = null, index = null;
+    // The first child that can't be read. The others are still read, to
+    // leave the reader at the end tag.
+    XMLError problem = null;
+
+    g.line = XMLHelper.getLine(r);
+    while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String name = r.getLocalName();
+      try {
+        if (name.equals("palette")) {
+          // Either a palette in ROM, <palette addr="..."/>, or a palette file.
+          String paletteAddr = r.getAttributeValue(null, "addr");
+          g.remap = "true".equals(r.getAttributeValue(null, "remap"));
+          if (paletteAddr != null) {
+            g.paletteAddr = XMLHelper.parseInt(paletteAddr, 16, "addr", g.line);
+            index = r.getAttributeValue(null, "index");
+            if (index == null)
+              index = "0";
+            r.getElementText();
+          } else {
+            index = XMLHelper.getAttribute(r, "index");
+            g.palette = XMLHelper.getText(r);
+          }
+        } else {
+          String text = XMLHelper.getText(r);
+          if (name.equals("addr"))
+            addr = text;
+          else if (name.equals("width"))
+            width = text;
+          else if (name.equals("height"))
+            height = text;
+          else if (name.equals("name"))
+            g.name = text;
+          else if (name.equals("bpp"))
+            g.bpp = XMLHelper.parseInt(text, 10, name, g.line);
+          else if (name.equals("layout"))
+            g.layout2d = text.equals("2d");
+          else if (name.equals("compression"))
+            g.compression = Compression.type(text, g.line);
+          else if (name.equals("pointer"))
+            g.pointer = XMLHelper.parseInt(text, 16, name, g.line);
+          else if (name.equals("flip")) {
+            g.hflip = text.indexOf('h') >= 0;
+            g.vflip = text.indexOf('v') >= 0;
+          }
+        }
+      } catch (XMLError xe) {
+        // Read the rest of the element, and go on with the next one.
+        if (r.getEventType() == XMLStreamConstants.START_ELEMENT)
+          r.getElementText();
+        if (problem == null)
+          problem = xe;
+      }
+    }
+    if (problem != null)
+      throw problem;
+
+    g.addr = XMLHelper.parseInt(required(addr, "addr", "graphic", g.line), 16, "addr", g.line);
+    g.width = XMLHelper.parseInt(required(width, "width", "graphic", g.line), 10, "width", g.line);
+    g.height = XMLHelper.parseInt(required(height, "height", "graphic", g.line), 10, "height", g.line);
+    required(g.name, "name", "graphic", g.line);
+    if (g.bpp != 4 && g.bpp != 8)
+      throw new XMLError ("Graphic at line " + g.line + " has " + g.bpp + " bpp, only 4 or 8 are supported");
+    if (g.compression != 0 && g.layout2d)
+      throw new XMLError ("Compressed graphic at line " + g.line + " can't have a 2d layout");
+    // Palette is only needed for extraction.
+    if (index != null)
+      g.paletteIndex = XMLHelper.parseInt(index, 10, "index", g.line);
+    return g;
+  }
+
+// -------------------------------------------------------------------  
+
+// Reads the children of a <font> element, leaving the reader at its end tag.
+  static FontEntry readFont (XMLStreamReader r) throws XMLError, XMLStreamException {
+    FontEntry f = new FontEntry();
+    String addr = null, first = null, count = null, lineWidth = null;
+    // As in readGraphic.
+    XMLError problem = null;
+
+    f.line = XMLHelper.getLine(r);
+    while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String name = r.getLocalName();
+      try {
+        // Reads the whole child, even when it throws.
+        String text = XMLHelper.getText(r);
+        if (name.equals("addr"))
+          addr = text;
+        else if (name.equals("first"))
+          first = text;
+        else if (name.equals("count"))
+          count = text;
+        else if (name.equals("line"))
+          lineWidth = text;
+        else if (name.equals("width"))
+          f.width = XMLHelper.parseInt(text, 10, name, f.line);
+        else if (name.equals("height"))
+          f.height = XMLHelper.parseInt(text, 10, name, f.line);
+        else if (name.equals("bpp"))
+          f.bpp = XMLHelper.parseInt(text, 10, name, f.line);
+        else if (name.equals("spacing"))
+          f.spacing = XMLHelper.parseInt(text, 10, name, f.line);
+      } catch (XMLError xe) {
+        if (problem == null)
+          problem = xe;
+      }
+    }
+    if (problem != null)
+      throw problem;
+
+    f.addr = XMLHelper.parseInt(required(addr, "addr", "font", f.line), 16, "addr", f.line);
+    f.first = XMLHelper.parseInt(required(first, "first", "font", f.line), 16, "first", f.line);
+    f.count = XMLHelper.parseInt(required(count, "count", "font", f.line), 10, "count", f.line);
+    f.lineWidth = XMLHelper.parseInt(required(lineWidth, "line", "font", f.line), 10, "line", f.line);
+    if (f.bpp != 4 && f.bpp != 8)
+      throw new XMLError ("Font at line " + f.line + " has " + f.bpp + " bpp, only 4 or 8 are supported");
+    return f;
+  }
+
+// -------------------------------------------------------------------  
+
+// Throws XMLError if an attribute of an element at line was missing.
+  static String attribute (String value, String attribute, String element, int line) throws XMLError {
+    if (value == null)
+      throw new XMLError ("Element " + element + " at line " + line + " has no attribute " + attribute);
+    return value;
+  }
+
+// -------------------------------------------------------------------  
+
+// Throws XMLError if a child element of <graphic> or <font> was missing.
+  static String required (String value, String element, String parent, int line) throws XMLError {
+    if (value == null)
+      throw new XMLError ("No element named " + element + " in " + parent + " at line " + line);
+    return value;
+  }
+}
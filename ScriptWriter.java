@@ -0,0 +1,256 @@
+import java.io.*;
+import java.nio.charset.*;
+import javax.xml.stream.*;
+
+// Writes a skeleton script for a new translation: every element of the script
+// it reads, in the same order, with the original of each <text> decoded into
+// an "original" attribute and the translation left empty. Originals are
+// decoded with the <table> of the script, or as Shift-JIS without one.
+// Control codes in the originals are written as their control strings, such
+// as @NEWLINE@, and other bytes below 0x20, or not in the table, as their hex
+// value, such as @0A@.
+// Everything goes through one buffered writer into one file.
+public class ScriptWriter implements EntryHandler {
+  static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+  String name;
+  File tmp;
+  Writer file;
+  XMLStreamWriter out;
+  int texts;
+
+// -------------------------------------------------------------------
+
+// Reads script filename, and writes its skeleton into file name.
+  static void dump (String filename, String name) throws XMLError {
+    ScriptWriter writer = new ScriptWriter(name);
+    try {
+      ScriptReader.read(filename, writer);
+    } finally {
+      writer.close();
+    }
+    RomImage.replace(writer.tmp.toPath(), name);
+    System.out.println ("Wrote " + writer.texts + " texts to <" + name + ">.");
+  }
+
+// -------------------------------------------------------------------
+
+  ScriptWriter (String name) throws XMLError {
+    this.name = name;
+    tmp = new File(name + ".tmp");
+    try {
+      file = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+      out = factory.createXMLStreamWriter(file);
+      out.writeStartDocument("utf-8", "1.0");
+      out.writeCharacters("\n");
+      out.writeStartElement("translation");
+    } catch (IOException | XMLStreamException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  void close () {
+    try {
+      file.close();
+    } catch (IOException fe) {
+      // Only reached after an error, which is reported instead.
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Writes a child element of the current element, holding text.
+  void element (String element, String text) throws XMLStreamException {
+    out.writeCharacters("\n    ");
+    out.writeStartElement(element);
+    out.writeCharacters(text);
+    out.writeEndElement();
+  }
+
+// -------------------------------------------------------------------
+
+  public void game (String name) throws XMLError {
+    Script.target = new Target(name, false, System.out);
+    try {
+      out.writeCharacters("\n  ");
+      out.writeStartElement("game");
+      out.writeCharacters(name);
+      out.writeEndElement();
+    } catch (XMLStreamException xe) {
+      throw new XMLError (xe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  public void table (String name) throws XMLError {
+    Script.useTable(TableCodec.load(name));
+    try {
+      out.writeCharacters("\n  ");
+      out.writeStartElement("table");
+      out.writeCharacters(name);
+      out.writeEndElement();
+    } catch (XMLStreamException xe) {
+      throw new XMLError (xe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  public void font (FontEntry f) throws XMLError {
+    try {
+      out.writeCharacters("\n  ");
+      out.writeStartElement("font");
+      element("addr", Integer.toHexString(f.addr));
+      element("first", Integer.toHexString(f.first));
+      element("count", "" + f.count);
+      element("line", "" + f.lineWidth);
+      if (f.width != 1)
+        element("width", "" + f.width);
+      if (f.height != 1)
+        element("height", "" + f.height);
+      if (f.bpp != 4)
+        element("bpp", "" + f.bpp);
+      if (f.spacing != 1)
+        element("spacing", "" + f.spacing);
+      out.writeCharacters("\n  ");
+      out.writeEndElement();
+    } catch (XMLStreamException xe) {
+      throw new XMLError (xe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  public void graphic (GraphicEntry g) throws XMLError {
+    try {
+      out.writeCharacters("\n  ");
+      out.writeStartElement("graphic");
+      element("addr", Integer.toHexString(g.addr));
+      element("width", "" + g.width);
+      element("height", "" + g.height);
+      element("name", g.name);
+      if (g.bpp != 4)
+        element("bpp", "" + g.bpp);
+      if (g.layout2d)
+        element("layout", "2d");
+      if (g.hflip || g.vflip)
+        element("flip", (g.hflip ? "h" : "") + (g.vflip ? "v" : ""));
+      if (g.compression != 0)
+        element("compression", g.compression == Compression.LZ77 ? "lz77" : "rle");
+      if (g.pointer >= 0)
+        element("pointer", Integer.toHexString(g.pointer));
+      if (g.palette != null || g.paletteAddr >= 0) {
+        out.writeCharacters("\n    ");
+        out.writeStartElement("palette");
+        if (g.paletteAddr >= 0)
+          out.writeAttribute("addr", Integer.toHexString(g.paletteAddr));
+        out.writeAttribute("index", "" + g.paletteIndex);
+        if (g.remap)
+          out.writeAttribute("remap", "true");
+        if (g.palette != null)
+          out.writeCharacters(g.palette);
+        out.writeEndElement();
+      }
+      out.writeCharacters("\n  ");
+      out.writeEndElement();
+    } catch (XMLStreamException xe) {
+      throw new XMLError (xe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  public void free (int start, int end) throws XMLError {
+    try {
+      out.writeCharacters("\n  ");
+      out.writeEmptyElement("free");
+      out.writeAttribute("start", Integer.toHexString(start));
+      out.writeAttribute("end", Integer.toHexString(end));
+    } catch (XMLStreamException xe) {
+      throw new XMLError (xe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+  public void text (TextEntry t) throws XMLError {
+    int start = Script.target.readAddressFrom(t.pointer);
+    byte[] bytes = new byte[Script.target.originalLength(start)];
+    Script.target.gameData.read(start, bytes, 0, bytes.length);
+
+    try {
+      out.writeCharacters("\n  ");
+      out.writeStartElement("text");
+      out.writeAttribute("pointer", t.pointerStr);
+      out.writeAttribute("original", decode(bytes));
+      out.writeEndElement();
+    } catch (XMLStreamException xe) {
+      throw new XMLError (xe.getMessage());
+    }
+    texts++;
+  }
+
+// -------------------------------------------------------------------
+
+  public void unreadable (XMLError xe) throws XMLError {
+    throw xe;
+  }
+
+// -------------------------------------------------------------------
+
+  public void end () throws XMLError {
+    try {
+      out.writeCharacters("\n");
+      out.writeEndElement();
+      out.writeCharacters("\n");
+      out.writeEndDocument();
+      out.flush();
+    } catch (XMLStreamException xe) {
+      throw new XMLError (xe.getMessage());
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Decodes a string from ROM with the table of the script, writing control
+// codes as control strings.
+  static String decode (byte[] bytes) {
+    StringBuilder s = new StringBuilder();
+    int i = 0;
+    while (i < bytes.length) {
+      ControlString match = null;
+      for (ControlString c : Script.controlStrings)
+        if (startsWith(bytes, i, c.controlBytes) &&
+            (match == null || c.controlBytes.length() > match.controlBytes.length()))
+          match = c;
+      if (match != null) {
+        s.append(match.controlString);
+        i += match.controlBytes.length();
+        continue;
+      }
+      int n = (bytes[i] & 0xFF) < 0x20 ? 0 : Script.table.decode(bytes, i, s);
+      if (n == 0) {
+        // Not allowed in XML, or not in the table: written as its hex value.
+        s.append(String.format("@%02X@", bytes[i]));
+        n = 1;
+      }
+      i += n;
+    }
+    return s.toString();
+  }
+
+// -------------------------------------------------------------------
+
+// Whether bytes holds the control bytes of s at offset i.
+  static boolean startsWith (byte[] bytes, int i, String s) {
+    if (i + s.length() > bytes.length)
+      return false;
+    for (int k = 0; k < s.length(); k++)
+      if ((bytes[i + k] & 0xFF) != s.charAt(k))
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,160 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// The original string at every pointer target of the ROM: where it starts, how
+// long it is, how much of it can be overwritten without reaching another
+// string, and whether several pointers share it. The original ROM never
+// changes, so the index is built once and saved next to it, for the ROM with
+// that CRC32. Later runs map the file and look strings up without scanning.
+// The file holds an open-addressing table of 16-byte records: start, length
+// (without the terminator, or -1 if there was none in reach), capacity and flags.
+public class SlotIndex {
+  static final int MAGIC = 0x484b5331;  // HKS1
+  static final int HEADER = 16, RECORD = 16;
+  // More than one pointer points to the string.
+  static final int SHARED = 1;
+  // Another string starts inside this one.
+  static final int OVERLAP = 2;
+  // Longest string looked for, so targets in non-text data don't scan forever.
+  static final int MAX_LENGTH = 0x10000;
+
+  ByteBuffer table;
+  int capacity;
+
+// -------------------------------------------------------------------
+
+// Maps the index in file name, if it belongs to a ROM with this CRC. Otherwise
+// builds it from rom and pointers, and writes it there first.
+  static SlotIndex load (String name, RomImage rom, int romCrc, PointerIndex pointers) throws XMLError {
+    SlotIndex slots = map(name, romCrc);
+    if (slots != null)
+      return slots;
+
+    ByteBuffer built = build(rom, romCrc, pointers);
+    Path tmp = Paths.get(name + ".tmp");
+    try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (built.hasRemaining())
+        fc.write(built);
+    } catch (IOException fe) {
+      throw new XMLError ("Can't write <" + name + ">: " + fe.getMessage());
+    }
+    RomImage.replace(tmp, name);
+
+    slots = map(name, romCrc);
+    if (slots == null)
+      throw new XMLError ("Can't read <" + name + ">");
+    return slots;
+  }
+
+// -------------------------------------------------------------------
+
+// Maps file name, or returns null if it's missing or for another ROM.
+  static SlotIndex map (String name, int romCrc) {
+    File f = new File(name);
+    if (!f.exists())
+      return null;
+    try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      if (in.size() < HEADER)
+        return null;
+      ByteBuffer table = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      table.order(ByteOrder.LITTLE_ENDIAN);
+      int capacity = table.getInt(8);
+      if (table.getInt(0) != MAGIC || table.getInt(4) != romCrc ||
+          Integer.bitCount(capacity) != 1 || in.size() != HEADER + (long)capacity * RECORD)
+        return null;
+      SlotIndex slots = new SlotIndex();
+      slots.table = table;
+      slots.capacity = capacity;
+      return slots;
+    } catch (IOException fe) {
+      // A broken index is built again.
+      return null;
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Builds the index file in memory, one record per pointer target.
+  static ByteBuffer build (RomImage rom, int romCrc, PointerIndex pointers) {
+    int[] targets = pointers.targets;
+    int capacity = Integer.highestOneBit(Math.max(targets.length, 1) * 2) * 2;
+    ByteBuffer table = ByteBuffer.allocate(HEADER + capacity * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+    table.putInt(0, MAGIC);
+    table.putInt(4, romCrc);
+    table.putInt(8, capacity);
+    table.putInt(12, targets.length);
+    for (int i = 0; i < capacity; i++)
+      table.putInt(HEADER + i * RECORD, -1);
+
+    for (int i = 0; i < targets.length; i++) {
+      int start = targets[i], end = start;
+      while (end < rom.length() && end - start < MAX_LENGTH && rom.original(end) != 0)
+        end++;
+      int length = end < rom.length() && rom.original(end) == 0 ? end - start : -1;
+      int room = length < 0 ? -1 : length + 1, flags = 0;
+      if (length >= 0 && i + 1 < targets.length && targets[i + 1] <= end) {
+        room = targets[i + 1] - start;
+        flags |= OVERLAP;
+      }
+      if (pointers.pointersTo(start).length > 1)
+        flags |= SHARED;
+
+      int record = HEADER + probe(table, capacity, start) * RECORD;
+      table.putInt(record, start);
+      table.putInt(record + 4, length);
+      table.putInt(record + 8, room);
+      table.putInt(record + 12, flags);
+    }
+    return table;
+  }
+
+// -------------------------------------------------------------------
+
+// Slot of start in table: the one holding it, or the empty one where it belongs.
+  static int probe (ByteBuffer table, int capacity, int start) {
+    int mask = capacity - 1;
+    int slot = (start * 0x9e3779b1) >>> 7 & mask;
+    while (true) {
+      int key = table.getInt(HEADER + slot * RECORD);
+      if (key == -1 || key == start)
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Offset of the record of the string at start, or -1 if start is no pointer target.
+  int find (int start) {
+    int record = HEADER + probe(table, capacity, start) * RECORD;
+    return table.getInt(record) == start ? record : -1;
+  }
+
+// -------------------------------------------------------------------
+
+// Length of the original string at start, without its terminator, or -1 if unknown.
+  int length (int start) {
+    int record = find(start);
+    return record < 0 ? -1 : table.getInt(record + 4);
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes that can be written at start without reaching another string,
+// terminator included, or -1 if unknown.
+  int room (int start) {
+    int record = find(start);
+    return record < 0 ? -1 : table.getInt(record + 8);
+  }
+
+// -------------------------------------------------------------------
+
+// SHARED and OVERLAP flags of the string at start.
+  int flags (int start) {
+    int record = find(start);
+    return record < 0 ? 0 : table.getInt(record + 12);
+  }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+// Converts between script characters and the bytes the game's font uses,
+// through a table: Shift-JIS by default, or a Thingy-style .tbl file given by
+// <table>. Each line of a table file is one of:
+//   HEX=text   the bytes HEX (1 to 4 of them) stand for text, one character
+//              or several (as in dual tile encoding)
+//   !HEX=N     the bytes HEX are N cells wide in game, instead of one per byte
+//   # ...      a comment; blank lines are ignored too
+// Table files are UTF-8. When a text can be written in several ways, the
+// longest text wins, and then the first line.
+// Encoding looks characters up in arrays indexed by char, and writes straight
+// into a TextBlock, so it allocates nothing. A character without bytes is an error.
+public class TableCodec {
+  static final Charset SJIS = Charset.forName("Shift_JIS");
+  static TableCodec shiftJis;
+
+  // Bytes of each character, big endian, their count (0 if the character
+  // has none) and width in cells.
+  int[] code = new int[0x10000];
+  byte[] length = new byte[0x10000];
+  byte[] width = new byte[0x10000];
+  // Entries longer than one character, by first character: multi[c] - 1 is
+  // their index in multiText and friends, or multi[c] is 0 if there are none.
+  // Each list is sorted longest first.
+  short[] multi = new short[0x10000];
+  ArrayList<String[]> multiText = new ArrayList<String[]>();
+  ArrayList<int[]> multiCode = new ArrayList<int[]>();
+  ArrayList<byte[]> multiLength = new ArrayList<byte[]>();
+  ArrayList<byte[]> multiWidth = new ArrayList<byte[]>();
+  // Text of each 1 and 2 byte code, and of longer codes.
+  String[] decode1 = new String[0x100];
+  String[] decode2 = new String[0x10000];
+  HashMap<Integer, String> decodeLong = new HashMap<Integer, String>();
+  int longest;
+  // Hash of the table, for BuildCache.
+  long hash;
+
+// -------------------------------------------------------------------
+
+// The Shift-JIS table, built from the JDK charset on first use. Bytes below
+// 0x80 are always ASCII.
+  static synchronized TableCodec shiftJis () {
+    if (shiftJis != null)
+      return shiftJis;
+    TableCodec table = new TableCodec();
+    table.hash = BuildCache.hash(BuildCache.hash(), SJIS.name());
+    CharsetDecoder decoder = SJIS.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+    LinkedHashMap<Integer, String> entries = new LinkedHashMap<Integer, String>();
+    for (int b = 0; b < 0x100; b++) {
+      String s = b < 0x80 ? "" + (char)b : decode(decoder, new byte[]{(byte)b});
+      if (s != null)
+        entries.put(b, s);
+    }
+    for (int lead = 0x81; lead < 0x100; lead++) {
+      if (lead > 0x9f && lead < 0xe0)
+        continue;
+      for (int trail = 0x40; trail < 0x100; trail++) {
+        String s = decode(decoder, new byte[]{(byte)lead, (byte)trail});
+        if (s != null)
+          entries.put(lead << 8 | trail, s);
+      }
+    }
+    for (Map.Entry<Integer, String> e : entries.entrySet()) {
+      int bytes = e.getKey() > 0xff ? 2 : 1;
+      table.add(e.getKey(), bytes, e.getValue(), bytes);
+    }
+    table.index();
+    shiftJis = table;
+    return table;
+  }
+
+// -------------------------------------------------------------------
+
+// Decodes bytes as one character, or returns null if they aren't one.
+  static String decode (CharsetDecoder decoder, byte[] bytes) {
+    try {
+      String s = decoder.decode(ByteBuffer.wrap(bytes)).toString();
+      return s.length() == 1 ? s : null;
+    } catch (CharacterCodingException cce) {
+      return null;
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Reads table file name.
+  static TableCodec load (String name) throws XMLError {
+    byte[] file = Script.readFile(name);
+    TableCodec table = new TableCodec();
+    table.hash = BuildCache.hash(BuildCache.hash(), file);
+    // Widths and codes by key(): 41 and 0041 are different codes.
+    HashMap<Long, Integer> widths = new HashMap<Long, Integer>();
+    HashSet<Long> codes = new HashSet<Long>();
+    ArrayList<Object[]> entries = new ArrayList<Object[]>();
+
+    String[] lines = new String(file, StandardCharsets.UTF_8).split("\r?\n", -1);
+    for (int n = 0; n < lines.length; n++) {
+      String line = lines[n];
+      if (n == 0 && line.startsWith("\uFEFF"))
+        line = line.substring(1);
+      if (line.trim().isEmpty() || line.startsWith("#"))
+        continue;
+      boolean isWidth = line.startsWith("!");
+      int eq = line.indexOf('=');
+      String hex = eq < 0 ? "" : line.substring(isWidth ? 1 : 0, eq).trim();
+      String text = eq < 0 ? "" : line.substring(eq + 1);
+      if (hex.length() < 2 || hex.length() > 8 || hex.length() % 2 != 0 ||
+          !hex.matches("[0-9A-Fa-f]+") || text.isEmpty())
+        throw new XMLError ("Bad entry at line " + (n + 1) + " of table <" + name + ">: " + line);
+      int value = (int)Long.parseLong(hex, 16), bytes = hex.length() / 2;
+      if (isWidth) {
+        int w;
+        try {
+          w = Integer.parseInt(text.trim());
+        } catch (NumberFormatException nfe) {
+          throw new XMLError ("Bad width at line " + (n + 1) + " of table <" + name + ">: " + line);
+        }
+        // Widths are stored in a byte.
+        if (w < 0 || w > Byte.MAX_VALUE)
+          throw new XMLError ("Width at line " + (n + 1) + " of table <" + name + "> is not between 0 and " +
+                              Byte.MAX_VALUE + ": " + line);
+        widths.put(key(value, bytes), w);
+      } else {
+        codes.add(key(value, bytes));
+        entries.add(new Object[]{value, bytes, text});
+      }
+    }
+
+    for (Object[] e : entries) {
+      int value = (Integer)e[0], bytes = (Integer)e[1];
+      Integer w = widths.get(key(value, bytes));
+      table.add(value, bytes, (String)e[2], w != null ? w : bytes);
+    }
+    for (long k : widths.keySet())
+      if (!codes.contains(k))
+        throw new XMLError ("Width of " + String.format("%0" + (k >>> 32) * 2 + "X", k & 0xffffffffL) +
+                            " in table <" + name + "> has no entry");
+    table.index();
+    return table;
+  }
+
+// -------------------------------------------------------------------
+
+// Key of the code made of the given bytes of value: 41 and 0041 differ.
+  static long key (int value, int bytes) {
+    return (long)bytes << 32 | value & 0xffffffffL;
+  }
+
+// -------------------------------------------------------------------
+
+// Adds an entry: the given bytes of value stand for text, w cells wide.
+  void add (int value, int bytes, String text, int w) {
+    if (bytes == 1 && decode1[value] == null)
+      decode1[value] = text;
+    else if (bytes == 2 && decode2[value] == null)
+      decode2[value] = text;
+    else if (bytes > 2 && !decodeLong.containsKey(value))
+      decodeLong.put(value, text);
+    longest = Math.max(longest, bytes);
+
+    char c = text.charAt(0);
+    if (text.length() == 1) {
+      if (length[c] == 0) {
+        code[c] = value;
+        length[c] = (byte)bytes;
+        width[c] = (byte)w;
+      }
+      return;
+    }
+    if (multi[c] == 0) {
+      multiText.add(new String[0]);
+      multiCode.add(new int[0]);
+      multiLength.add(new byte[0]);
+      multiWidth.add(new byte[0]);
+      multi[c] = (short)multiText.size();
+    }
+    int m = multi[c] - 1;
+    for (String s : multiText.get(m))
+      if (s.equals(text))
+        return;
+    int k = multiText.get(m).length;
+    multiText.set(m, Arrays.copyOf(multiText.get(m), k + 1));
+    multiCode.set(m, Arrays.copyOf(multiCode.get(m), k + 1));
+    multiLength.set(m, Arrays.copyOf(multiLength.get(m), k + 1));
+    multiWidth.set(m, Arrays.copyOf(multiWidth.get(m), k + 1));
+    multiText.get(m)[k] = text;
+    multiCode.get(m)[k] = value;
+    multiLength.get(m)[k] = (byte)bytes;
+    multiWidth.get(m)[k] = (byte)w;
+  }
+
+// -------------------------------------------------------------------
+
+// Sorts the entries of several characters longest first, keeping file order
+// among entries of the same length.
+  void index () {
+    for (int m = 0; m < multiText.size(); m++) {
+      final String[] text = multiText.get(m);
+      Integer[] order = new Integer[text.length];
+      for (int k = 0; k < order.length; k++)
+        order[k] = k;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare (Integer a, Integer b) {
+          return text[b].length() - text[a].length();
+        }
+      });
+      String[] t = new String[order.length];
+      int[] c = new int[order.length];
+      byte[] l = new byte[order.length], w = new byte[order.length];
+      for (int k = 0; k < order.length; k++) {
+        t[k] = text[order[k]];
+        c[k] = multiCode.get(m)[order[k]];
+        l[k] = multiLength.get(m)[order[k]];
+        w[k] = multiWidth.get(m)[order[k]];
+      }
+      multiText.set(m, t);
+      multiCode.set(m, c);
+      multiLength.set(m, l);
+      multiWidth.set(m, w);
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Appends the bytes of the character (or characters) at text[i] to out, and
+// returns the index after them. Throws XMLError if the table has no bytes for it.
+  int encode (String text, int i, TextBlock out, int line) throws XMLError {
+    char c = text.charAt(i);
+    if (multi[c] != 0) {
+      int m = multi[c] - 1;
+      String[] candidates = multiText.get(m);
+      for (int k = 0; k < candidates.length; k++)
+        if (candidates[k].length() > 1 && text.startsWith(candidates[k], i)) {
+          out.append(c, multiCode.get(m)[k], multiLength.get(m)[k], multiWidth.get(m)[k]);
+          return i + candidates[k].length();
+        }
+    }
+    if (length[c] == 0)
+      throw new XMLError (String.format("Character U+%04X in text at line %d has no bytes in the table",
+                                        (int)c, line));
+    out.append(c, code[c], length[c], width[c]);
+    return i + 1;
+  }
+
+// -------------------------------------------------------------------
+
+// Appends the text of the code at bytes[i] to s, trying the longest codes
+// first. Returns how many bytes it took, or 0 if no code starts there.
+  int decode (byte[] bytes, int i, StringBuilder s) {
+    for (int n = Math.min(longest, bytes.length - i); n >= 1; n--) {
+      int value = 0;
+      for (int k = 0; k < n; k++)
+        value = value << 8 | (bytes[i + k] & 0xFF);
+      String text = n == 1 ? decode1[value] : n == 2 ? decode2[value] : decodeLong.get(value);
+      if (text != null) {
+        s.append(text);
+        return n;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,56 @@
+import java.util.*;
+
+// Finds strings that can share ROM space. A string that ends with another
+// string's bytes (\0 included) can simply point into the longer one.
+// Sorting strings by their reversed bytes puts every string right before the
+// strings it is a tail of, so one sort and one pass find the longest host
+// for every string.
+public class TailMerger {
+
+// -------------------------------------------------------------------
+
+// Sets host of every string in list to the longest string it is a tail of,
+// or to itself if there is none. Identical strings share one host.
+  static void merge (List<EncodedText> list) {
+    EncodedText[] sorted = list.toArray(new EncodedText[list.size()]);
+    Arrays.sort(sorted, new Comparator<EncodedText>() {
+      public int compare (EncodedText a, EncodedText b) {
+        return compareReversed(a.bytes, b.bytes);
+      }
+    });
+
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      if (i + 1 < sorted.length && isTail(sorted[i].bytes, sorted[i + 1].bytes))
+        sorted[i].host = sorted[i + 1].host;
+      else
+        sorted[i].host = sorted[i];
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Compares a and b as if both were read backwards. A tail sorts before
+// anything it is the tail of.
+  static int compareReversed (byte[] a, byte[] b) {
+    int i = a.length - 1, j = b.length - 1;
+    while (i >= 0 && j >= 0) {
+      int x = a[i--] & 0xFF, y = b[j--] & 0xFF;
+      if (x != y)
+        return x - y;
+    }
+    return a.length - b.length;
+  }
+
+// -------------------------------------------------------------------
+
+// Returns whether a is a tail of b.
+  static boolean isTail (byte[] a, byte[] b) {
+    if (a.length > b.length)
+      return false;
+    int offset = b.length - a.length;
+    for (int i = a.length - 1; i >= 0; i--)
+      if (a[i] != b[offset + i])
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,434 @@
+import java.io.*;
+import java.util.*;
+
+// One ROM the script is written into, and everything a run keeps about it:
+// the mapped image, its pointer and string indexes, its build cache, and
+// where insertion wrote, vacated and relocated. Encoded texts and graphics
+// don't depend on any of this besides the original strings, so one encoding
+// can be written into several targets, each with its own free space.
+// Messages about a target go to its own stream, so targets can be written in
+// parallel and still report one after another.
+public class Target {
+  // Moves every word outside the script that points to a relocated string,
+  // not only the ones in pointer tables (-Daliases=all).
+  static final boolean ALL_ALIASES = "all".equals(System.getProperty("aliases"));
+
+  // Name of the ROM, as given by <game> or on the command line.
+  String game;
+  RomImage gameData;
+  int romCrc;
+  PrintStream out;
+  // Every pointer in the original ROM, by target.
+  PointerIndex pointers;
+  // The original string at every pointer target.
+  SlotIndex slots;
+  // Encodings from the previous run, or null when extracting or in a batch.
+  BuildCache cache;
+  // Where relocated strings may be written.
+  FreeSpace freeSpace;
+  // Texts written over their original strings.
+  ArrayList<EncodedText> inPlace;
+  // The last text written in place for each pointer.
+  HashMap<Integer, EncodedText> inPlaceAt;
+  // Texts that don't fit their original slot. They are placed after every text
+  // was seen, when all free space is known.
+  ArrayList<EncodedText> relocated;
+  // Original strings given up by relocated texts, and unused tails of
+  // overwritten ones. They become free space unless something was written there.
+  TreeMap<Integer, Integer> vacated;
+  // Ranges written in place, by texts and graphics.
+  TreeMap<Integer, Integer> written;
+  // Compressed graphics that grew too large for their original slot.
+  ArrayList<GraphicPipeline.Job> relocatedGraphics;
+  // Pointers given by <text> elements.
+  BitSet scripted;
+  // Pointers outside the script that move with the relocated text they point to.
+  BitSet aliases;
+  // What the current run did.
+  Metrics metrics;
+  // Problems found so far, when validating: placement goes on after one.
+  // Null when any problem stops the run.
+  ArrayList<String> problems;
+
+// -------------------------------------------------------------------
+
+// Maps ROM name, and indexes its pointers and strings. It's mapped
+// copy-on-write if writable.
+  Target (String name, boolean writable, PrintStream out) throws XMLError {
+    this.out = out;
+    game = name;
+    gameData = new RomImage(game, writable);
+    romCrc = Patch.crc(gameData.original);
+    pointers = new PointerIndex(gameData);
+    slots = SlotIndex.load(game + ".slots", gameData, romCrc, pointers);
+    out.println ("Found <" + game + ">, " + gameData.length() + " bytes, " +
+                 pointers.locations.length + " pointers.");
+    reset();
+  }
+
+// -------------------------------------------------------------------
+
+// Forgets what the previous run wrote, and starts over with the original ROM.
+  void reset () {
+    gameData.revert();
+    freeSpace = new FreeSpace();
+    freeSpace.add("end-of-ROM", 0x7fade0, 0x800000);
+    inPlace = new ArrayList<EncodedText>();
+    inPlaceAt = new HashMap<Integer, EncodedText>();
+    relocated = new ArrayList<EncodedText>();
+    vacated = new TreeMap<Integer, Integer>();
+    written = new TreeMap<Integer, Integer>();
+    relocatedGraphics = new ArrayList<GraphicPipeline.Job>();
+    scripted = new BitSet();
+    aliases = new BitSet();
+    metrics = new Metrics();
+  }
+
+// -------------------------------------------------------------------
+
+// Name of an output file next to the ROM: the ROM name with a leading "_",
+// and the given extension instead of its own, unless extension is null.
+  String outputName (String extension) {
+    File f = new File(game);
+    String name = "_" + f.getName();
+    if (extension != null)
+      name = name.replaceFirst("\\.[^.]*$", "") + "." + extension;
+    return new File(f.getParentFile(), name).getPath();
+  }
+
+// -------------------------------------------------------------------
+
+// Throws XMLError with message, or only records it when validating.
+  void fail (String message) throws XMLError {
+    if (problems == null)
+      throw new XMLError (message);
+    problems.add(message);
+  }
+
+// -------------------------------------------------------------------
+
+// Reads 4 bytes from gameData, starting from given location, and constructs
+// an address from them.
+  int readAddressFrom (int location) {
+    return gameData.readWord(location) - 0x8000000;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes the given address as 4 bytes to gameData, starting from given location.
+  void writeAddressTo (int address, int location) {
+    gameData.writeWord(location, address + 0x8000000);
+  }
+
+// -------------------------------------------------------------------
+
+// Length of the original string at addr, without its terminator.
+  int originalLength (int addr) {
+    int length = slots.length(addr);
+    if (length >= 0)
+      return length;
+    // Not a pointer target: look for the terminator.
+    int end = addr;
+    while (gameData.original(end) != 0)
+      end++;
+    return end - addr;
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes that can be written over the original string at addr without
+// reaching another string, terminator included.
+  int room (int addr) {
+    int room = slots.room(addr);
+    return room >= 0 ? room : originalLength(addr) + 1;
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes the text with the pointer at location may take without moving,
+// or Integer.MAX_VALUE if that pointer points nowhere in the ROM.
+  int budget (int location) {
+    int target = gameData.originalWord(location) - 0x8000000;
+    return target >= 0 && target < gameData.length() ? room(target) : Integer.MAX_VALUE;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes the tiles of a graphic into gameData. Compressed tiles larger than
+// their original slot are relocated later, by placeRelocated().
+  void writeGraphic (GraphicPipeline.Job job) throws XMLError {
+    long start = System.nanoTime();
+    GraphicEntry g = job.g;
+    TileCodec codec = job.codec;
+    metrics.count("graphics", 1);
+    if (g.compression == 0) {
+      codec.write(gameData, g.addr, job.tiles);
+      int rowSize = g.width * codec.tileSize();
+      for (int ty = 0; ty < g.height; ty++)
+        FreeSpace.insert(written, codec.rowAddress(g.addr, ty), codec.rowAddress(g.addr, ty) + rowSize);
+    } else if (job.tiles.length <= job.slot) {
+      gameData.write(g.addr, job.tiles, 0, job.tiles.length);
+      FreeSpace.insert(written, g.addr, g.addr + job.tiles.length);
+      FreeSpace.insert(vacated, g.addr + job.tiles.length, g.addr + job.slot);
+    } else {
+      if (g.pointer < 0)
+        throw new XMLError ("Compressed graphic at line " + g.line + " is " + job.tiles.length +
+                            " bytes, only " + job.slot + " fit at " + Integer.toHexString(g.addr) +
+                            ", and it has no pointer to relocate it");
+      FreeSpace.insert(vacated, g.addr, g.addr + job.slot);
+      // Its pointer is rewritten, so it no longer keeps the old tiles.
+      scripted.set(g.pointer);
+      relocatedGraphics.add(job);
+    }
+    metrics.time("write", start);
+  }
+
+// -------------------------------------------------------------------
+
+// Reads <pointer> from e, and writes the encoded text over the original string
+// if it fits. Otherwise, the text is queued to be relocated by placeRelocated().
+// Entries must be written in document order, so that the output doesn't depend on
+// how encoding was scheduled.
+  void writeText (EncodedText e) throws XMLError {
+    int pointerAddress, pointerValue;
+    long start = System.nanoTime();
+    TextEntry t = e.entry;
+
+    pointerAddress = t.pointer;
+    pointerValue = readAddressFrom(pointerAddress);
+    scripted.set(pointerAddress);
+    if (e.warning != null)
+      out.println(e.warning);
+
+    // First, attempt to write translated text into position of original text.
+    // It must not reach another string, nor anything already written.
+    int originalLength = originalLength(pointerValue) + 1; // Including \0
+    int room = room(pointerValue);
+    e.original = pointerValue;
+    e.originalLength = originalLength;
+
+    int newLength = e.bytes.length; // Also including \0
+
+    // An earlier text with the same pointer may be written over.
+    EncodedText earlier = inPlaceAt.get(pointerAddress);
+    int own = earlier != null ? earlier.bytes.length : 0;
+    if (newLength <= room &&
+        (newLength <= own || !FreeSpace.intersects(written, pointerValue + own, pointerValue + newLength))) {
+      // Translated text is shorter: able to overwrite original text
+      gameData.write(pointerValue, e.bytes, 0, newLength);
+      e.address = pointerValue;
+      if (earlier != null)
+        inPlace.remove(earlier);
+      inPlace.add(e);
+      inPlaceAt.put(pointerAddress, e);
+      FreeSpace.insert(written, pointerValue, pointerValue + newLength);
+      FreeSpace.insert(vacated, pointerValue + newLength, pointerValue + originalLength);
+    } else {
+      // Translated text is longer: write it somewhere else later
+      FreeSpace.insert(vacated, pointerValue, pointerValue + originalLength);
+      relocated.add(e);
+    }
+    metrics.count("texts", 1);
+    metrics.time("write", start);
+  }
+
+// -------------------------------------------------------------------
+
+// Strings pointed to from outside the script stay where they are: they are
+// taken out of vacated, unless their text was relocated and every such
+// pointer is an alias that moves with it. That includes strings that start
+// before a vacated range and run into it, such as one that ends with a
+// relocated string. Words inside vacated or written strings only look like
+// pointers, and are neither kept nor moved.
+  void keepReferenced () {
+    HashSet<Integer> moved = new HashSet<Integer>();
+    for (EncodedText e : relocated)
+      moved.add(e.original);
+
+    ArrayList<int[]> keep = new ArrayList<int[]>();
+    for (Map.Entry<Integer, Integer> r : vacated.entrySet()) {
+      ArrayList<Integer> targets = new ArrayList<Integer>();
+      for (int target = pointers.targetBefore(r.getKey());
+           target >= 0 && target + originalLength(target) >= r.getKey();
+           target = pointers.targetBefore(target))
+        targets.add(target);
+      for (int target : pointers.targetsIn(r.getKey(), r.getValue()))
+        targets.add(target);
+
+      for (int target : targets) {
+        boolean kept = false;
+        for (int p : pointers.pointersTo(target)) {
+          if (scripted.get(p) || FreeSpace.contains(vacated, p) || FreeSpace.contains(written, p))
+            continue;
+          if (moved.contains(target) && (ALL_ALIASES || pointers.inTable(p)))
+            aliases.set(p);
+          else if (!kept) {
+            keep.add(new int[]{target, target + originalLength(target) + 1});
+            kept = true;
+          }
+        }
+      }
+    }
+    for (int[] k : keep)
+      FreeSpace.subtract(vacated, k[0], k[1]);
+    metrics.count("strings kept", keep.size());
+  }
+
+// -------------------------------------------------------------------
+
+// Points every alias of the original of relocated text e to its new address,
+// and prints where it was. Returns how many there were.
+  int redirectAliases (EncodedText e) {
+    int n = 0;
+    for (int p : pointers.pointersTo(e.original))
+      if (aliases.get(p)) {
+        writeAddressTo(e.address, p);
+        out.println("Pointer at " + Integer.toHexString(p) + " moved with text " + e.entry.pointerStr +
+                    " at line " + e.entry.line + " to " + Integer.toHexString(e.address) + ".");
+        n++;
+      }
+    return n;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes all relocated texts into free space, largest first, and points them there.
+// Free space includes original strings that were vacated, except where something
+// else was written in place.
+// Storage optimization: a relocated text that is the tail of another string,
+// written in place or relocated, points into that string instead of being
+// written again.
+  void placeRelocated () throws XMLError {
+    long start = System.nanoTime();
+    keepReferenced();
+    for (Map.Entry<Integer, Integer> r : vacated.entrySet())
+      freeSpace.add("reclaimed", r.getKey(), r.getValue());
+    for (Map.Entry<Integer, Integer> r : written.entrySet())
+      freeSpace.remove(r.getKey(), r.getValue());
+
+    // Compressed graphics first, word aligned as the BIOS needs them.
+    for (GraphicPipeline.Job job : relocatedGraphics) {
+      int address = freeSpace.allocate(job.tiles.length, 4);
+      if (address < 0) {
+        fail("No free space left for graphic at line " + job.g.line + " (" + job.tiles.length + " bytes)");
+        continue;
+      }
+      gameData.write(address, job.tiles, 0, job.tiles.length);
+      writeAddressTo(address, job.g.pointer);
+      metrics.count("graphic bytes relocated", job.tiles.length);
+    }
+    metrics.count("graphics relocated", relocatedGraphics.size());
+
+    // Texts written in place can host tails, as long as nothing written after
+    // them, such as a graphic, changed their bytes.
+    ArrayList<EncodedText> strings = new ArrayList<EncodedText>(relocated);
+    byte[] check = new byte[0];
+    for (EncodedText e : inPlace) {
+      if (check.length < e.bytes.length)
+        check = new byte[e.bytes.length];
+      gameData.read(e.address, check, 0, e.bytes.length);
+      if (Arrays.equals(check, 0, e.bytes.length, e.bytes, 0, e.bytes.length))
+        strings.add(e);
+    }
+    TailMerger.merge(strings);
+
+    // First fit decreasing: ties keep document order. Hosts are placed first.
+    Collections.sort(relocated, new Comparator<EncodedText>() {
+      public int compare (EncodedText a, EncodedText b) {
+        if (a.bytes.length != b.bytes.length)
+          return b.bytes.length - a.bytes.length;
+        return (a.host == a ? 0 : 1) - (b.host == b ? 0 : 1);
+      }
+    });
+
+    // Hosts go back where they were in the previous run, if that space is free.
+    for (EncodedText e : relocated)
+      if (e.host == e && (e.cachedAddress < 0 || !freeSpace.claim(e.cachedAddress, e.bytes.length)))
+        e.address = -1;
+      else if (e.host == e)
+        e.address = e.cachedAddress;
+
+    int saved = 0, shared = 0, relocatedBytes = 0, aliases = 0;
+    for (EncodedText e : relocated) {
+      TextEntry t = e.entry;
+      int newLength = e.bytes.length;
+
+      if (e.host != e && e.host.address < 0) {
+        // Only reached when validating: the host failed, so the tail fails too.
+        fail("No free space left for text " + t.pointerStr + " at line " + t.line + ", the tail of text " +
+             e.host.entry.pointerStr + " at line " + e.host.entry.line);
+        e.address = -1;
+      } else if (e.host != e) {
+        // Tail of another string: modify pointer instead of write string
+        e.address = e.host.address + e.host.bytes.length - newLength;
+        writeAddressTo(e.address, t.pointer);
+        aliases += redirectAliases(e);
+        saved += newLength;
+        shared++;
+      } else {
+        // Host: write string
+        if (e.address < 0)
+          e.address = freeSpace.allocate(newLength);
+        if (e.address < 0) {
+          fail("No free space left for text " + t.pointerStr + " at line " + t.line +
+               " (" + newLength + " bytes)");
+          continue;
+        }
+        writeAddressTo(e.address, t.pointer);
+        aliases += redirectAliases(e);
+        gameData.write(e.address, e.bytes, 0, newLength);
+        relocatedBytes += newLength;
+      }
+    }
+    metrics.count("in place", inPlace.size());
+    metrics.count("relocated", relocated.size());
+    metrics.count("bytes relocated", relocatedBytes);
+    metrics.count("tails shared", shared);
+    metrics.count("bytes saved by tails", saved);
+    metrics.count("aliases moved", aliases);
+    freeSpace.measure(metrics);
+
+    // Texts with a warning aren't cached, so every run prints it again.
+    if (cache != null) {
+      for (EncodedText e : inPlace)
+        if (e.warning == null)
+          cache.putText(e.hash, e.bytes, -1);
+      for (EncodedText e : relocated)
+        if (e.warning == null)
+          cache.putText(e.hash, e.bytes, e.host == e ? e.address : -1);
+    }
+    metrics.time("place", start);
+  }
+
+// -------------------------------------------------------------------
+
+// Writes the patched ROM ("insert"), or an "ips" or "bps" patch against the
+// original ROM. A patch is checked by applying it in memory to a fresh copy
+// of the original.
+  void writeOutput (String output) throws XMLError {
+    long start = System.nanoTime();
+    if (output.equals("insert")) {
+      String name = outputName(null);
+      gameData.save(name);
+      metrics.time("output", start);
+      out.println ("Finished <" + name + ">.");
+      return;
+    }
+
+    String name = outputName(output);
+    if (output.equals("ips"))
+      Patch.writeIps(gameData, name);
+    else
+      Patch.writeBps(gameData, name);
+
+    RomImage check = new RomImage(game, true);
+    if (output.equals("ips"))
+      Patch.applyIps(Script.readFile(name), check);
+    else
+      Patch.applyBps(Script.readFile(name), check);
+    if (!check.data.equals(gameData.data))
+      throw new XMLError ("Patch <" + name + "> doesn't reproduce the patched ROM");
+    metrics.time("output", start);
+    out.println ("Finished <" + name + ">, " + new File(name).length() + " bytes.");
+  }
+}
@@ -1,29 +1,239 @@
 import java.util.*;
 
-// Contains an array of TextLines.
+// Contains an array of TextLines over one expanded text.
+// A TextBlock is reused from text to text: the expanded text lives in
+// primitive arrays that only grow, so wrapping and encoding a text
+// allocates nothing but the final byte array.
 public class TextBlock {
+  // Expanded text: the byte to write, the in-game width of each byte (in
+  // cells, or in pixels with a font), and whether each byte came from a space
+  // or from a line terminator.
+  byte[] text;
+  short[] width;
+  byte[] flags;
+  int length;
+  static final int SPACE = 1, TERMINATOR = 2;
+
+  // Lines of a text box, and cells of a line without a font.
+  static final int LINES = 4, CELLS = 28;
+  // Marks a layout that can't hold the rest of the words.
+  static final long NONE = Long.MAX_VALUE;
+  // Layout rules, for BuildCache: a change here changes the encoding.
+  static final String LAYOUT = "fewest bytes, least raggedness";
+
+  // Proportional font the text is measured with, or null to measure it in cells.
+  FontWidths font;
   TextLine line[];
   // current stores the index of the last non-empty TextLine.
   int current;
+  // Words of the expanded text: their range and width.
+  int[] wordStart, wordEnd, wordWidth;
+  int words;
+  // Dynamic programming tables of wrap(), by number of lines and first word.
+  long[][] ragged = new long[LINES + 1][0];
+  int[][] next = new int[LINES + 1][0];
+  // Set by wrap() when the text is laid out, but not well.
+  String warning;
   
 // -------------------------------------------------------------------  
 
-// Splits the given array of strings into 4 TextLines, making sure that
-// no TextLine exceeds 28 characters.
-// If given strings exceeds 4 TextLines, this will throw an exception.
-  TextBlock (String[] text) {
-    current = 0;
-    
-    line = new TextLine[4];
-    
-    for (int i = 0; i < 4; i++)
+  TextBlock () {
+    text = new byte[256];
+    width = new short[256];
+    flags = new byte[256];
+    wordStart = new int[64];
+    wordEnd = new int[64];
+    wordWidth = new int[64];
+    line = new TextLine[LINES];
+    for (int i = 0; i < LINES; i++)
        line[i] = new TextLine();
-       
-    for (int i = 0; i < text.length; i++) {
-      if (!line[current].fit(text[i]))
-        current++;
-        
-      line[current].add(text[i]);
+  }
+
+// -------------------------------------------------------------------  
+
+// Forgets the current text, before expanding another one.
+  void clear () {
+    length = 0;
+  }
+
+// -------------------------------------------------------------------  
+
+// Appends the bytes of script character c, as found by a TableCodec: the low
+// length bytes of code, big endian, w cells wide in game, or as wide as its
+// glyph with a font. The whole width is counted on the first byte. Only a one
+// byte space separates words.
+  void append (char c, int code, int length, int w) {
+    if (font != null)
+      w = font.width(code);
+    int f = 0;
+    if (c == ' ' && length == 1)
+      f = SPACE;
+    else if (c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029)
+      f = TERMINATOR;
+    for (int i = length - 1; i >= 0; i--)
+      append(code >> (i * 8), i == length - 1 ? w : 0, f);
+  }
+
+// -------------------------------------------------------------------  
+
+// Appends the bytes of a control string. Its whole width is counted on its
+// first byte; with a font, each of its cells is as wide as the widest glyph.
+  void append (ControlString cs) {
+    int w = cs.width * (font == null ? 1 : font.widest);
+    for (int i = 0; i < cs.controlBytes.length(); i++)
+      append(cs.controlBytes.charAt(i), i == 0 ? w : 0);
+  }
+
+// -------------------------------------------------------------------  
+
+  void append (char c, int w) {
+    int f = 0;
+    if (c == ' ')
+      f = SPACE;
+    else if (c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029)
+      f = TERMINATOR;
+    append(c & 0xFF, w, f);
+  }
+
+// -------------------------------------------------------------------  
+
+  void append (int b, int w, int f) {
+    if (length == text.length) {
+      text = Arrays.copyOf(text, length * 2);
+      width = Arrays.copyOf(width, length * 2);
+      flags = Arrays.copyOf(flags, length * 2);
+    }
+    text[length] = (byte)b;
+    width[length] = (short)w;
+    flags[length] = (byte)f;
+    length++;
+  }
+
+// -------------------------------------------------------------------  
+
+// Returns whether the space at i separates two words. A space only separates
+// words when there is some character before and after it, so a preceding and a
+// trailing space are kept.
+  boolean isSeparator (int i) {
+    return flags[i] == SPACE && i > 0 && i < length - 1 &&
+           flags[i - 1] != TERMINATOR && flags[i + 1] != TERMINATOR;
+  }
+
+// -------------------------------------------------------------------  
+
+// Splits the expanded text into words and wraps them into at most LINES
+// TextLines of CELLS cells (or of the line width of the font, in pixels),
+// choosing line breaks by dynamic programming.
+// Each break costs a byte (a 2-byte line break replaces a 1-byte space), so
+// the fewest lines give the shortest encoding. If that encoding fits in
+// budget bytes, any layout that still fits may be used instead, and the one
+// with the least raggedness (sum of squared unused width on all lines but the
+// last) is chosen. Otherwise the least ragged layout with the fewest lines is.
+// A word wider than a line gets a line of its own, with a warning.
+// Throws XMLError if the text needs more than LINES lines.
+  void wrap (int budget, int sourceLine) throws XMLError {
+    warning = null;
+    splitWords();
+    int max = font == null ? CELLS : font.line;
+    String unit = font == null ? " cells" : " pixels";
+
+    // ragged[k][i]: least raggedness of words i.. on exactly k lines, or NONE.
+    // next[k][i]: first word of the second of those lines.
+    if (ragged[1].length <= words) {
+      for (int k = 1; k <= LINES; k++) {
+        ragged[k] = new long[words * 2 + 1];
+        next[k] = new int[words * 2 + 1];
+      }
+    }
+    for (int k = 1; k <= LINES; k++) {
+      ragged[k][words] = NONE;
+      for (int i = words - 1; i >= 0; i--) {
+        long best = NONE;
+        int bestNext = -1;
+        int lineWidth = 0;
+        for (int j = i + 1; j <= words; j++) {
+          lineWidth += (j > i + 1 ? gap(j - 1) : 0) + wordWidth[j - 1];
+          if (lineWidth > max && j > i + 1)
+            break;
+          long cost;
+          if (j == words)
+            cost = k == 1 ? 0 : NONE;
+          else if (k == 1 || ragged[k - 1][j] == NONE)
+            cost = NONE;
+          else {
+            long slack = Math.max(max - lineWidth, 0);
+            cost = slack * slack + ragged[k - 1][j];
+          }
+          if (cost < best) {
+            best = cost;
+            bestNext = j;
+          }
+        }
+        ragged[k][i] = best;
+        next[k][i] = bestNext;
+      }
+    }
+
+    int fewest = 0;
+    for (int k = 1; k <= LINES && fewest == 0; k++)
+      if (ragged[k][0] != NONE)
+        fewest = k;
+    if (fewest == 0) {
+      int total = 0;
+      for (int i = 0; i < words; i++)
+        total += (i > 0 ? gap(i) : 0) + wordWidth[i];
+      throw new XMLError ("Text at line " + sourceLine + " is " + total + unit + " wide, and doesn't fit in " +
+                          LINES + " lines of " + max + unit);
+    }
+    int lines = fewest;
+    if (length + fewest <= budget)
+      for (int k = fewest + 1; k <= LINES && length + k <= budget; k++)
+        if (ragged[k][0] < ragged[lines][0])
+          lines = k;
+
+    for (int i = 0; i < LINES; i++)
+      line[i].clear();
+    current = lines - 1;
+    for (int k = lines, i = 0, l = 0; k >= 1; k--, l++) {
+      int end = k == 1 ? words : next[k][i];
+      for (; i < end; i++) {
+        line[l].add(wordStart[i], wordEnd[i], wordWidth[i], i > 0 ? gap(i) : 0);
+        if (wordWidth[i] > max)
+          warning = "Warning: a word " + wordWidth[i] + unit + " wide is longer than a line of " + max +
+                    unit + ", in text at line " + sourceLine;
+      }
+    }
+  }
+
+// -------------------------------------------------------------------  
+
+// Width of the space before word i, which is never the first.
+  int gap (int i) {
+    return width[wordStart[i] - 1];
+  }
+
+// -------------------------------------------------------------------  
+
+// Splits the expanded text into words, measuring each once.
+  void splitWords () {
+    words = 0;
+    int start = 0, w = 0;
+    for (int i = 0; i <= length; i++) {
+      if (i < length && !isSeparator(i)) {
+        w += width[i];
+        continue;
+      }
+      if (words == wordStart.length) {
+        wordStart = Arrays.copyOf(wordStart, words * 2);
+        wordEnd = Arrays.copyOf(wordEnd, words * 2);
+        wordWidth = Arrays.copyOf(wordWidth, words * 2);
+      }
+      wordStart[words] = start;
+      wordEnd[words] = i;
+      wordWidth[words] = w;
+      words++;
+      start = i + 1;
+      w = 0;
     }
   }
   
@@ -32,7 +242,8 @@ public class TextBlock {
 // Prints each TextLine to the console.
   void flush () {
     for (int i = 0; i <= current; i++)
-      System.out.println(line[i].flush());
+      System.out.println(new String(text, line[i].start, line[i].size(),
+                                    java.nio.charset.StandardCharsets.ISO_8859_1));
   }
 
 // -------------------------------------------------------------------  
@@ -41,7 +252,7 @@ public class TextBlock {
   int size () {
     int size = 0;
     for (int i = 0; i <= current; i++) {
-      size += line[i].getBuffer().size();
+      size += line[i].size();
       size += 2;
     }
     size -= 1;
@@ -51,30 +262,26 @@ public class TextBlock {
 
 // -------------------------------------------------------------------  
   
-// Converts all TextLines to byte arrays, and overwrite gameData with these
-// bytes starting from addr.
+// Converts all TextLines to one byte array, ready to be written into gameData.
 // At the end of each TextLine, the linebreaker 0x81ab (on not last line) or 
 // the terminator 0x0 (on last line) is written.
-// Returns the address after last written byte.
-  int insert (int gameData[], int addr) {
-    ArrayList<Integer> buffer;
+  byte[] getBytes () {
+    byte[] bytes = new byte[size()];
+    int pos = 0;
 
     for (int i = 0; i <= current; i++) {
-      buffer = line[i].getBuffer();
-      
-      for (int j = 0; j < buffer.size(); j++)
-        gameData[addr++] = buffer.get(j);
+      System.arraycopy(text, line[i].start, bytes, pos, line[i].size());
+      pos += line[i].size();
       
       if (i == current) 
-        gameData[addr++] = 0;
+        bytes[pos++] = 0;
       else {
-        gameData[addr++] = 0x81;
-        gameData[addr++] = 0xab;
+        bytes[pos++] = (byte)0x81;
+        bytes[pos++] = (byte)0xab;
       } 
     }
     
-    return addr;
+    return bytes;
   }
   
 }
-
@@ -0,0 +1,18 @@
+// One <text> element of the script.
+public class TextEntry {
+  // The pointer attribute, as written in the script.
+  public String pointerStr;
+  // Address of the pointer to the in-game string.
+  public int pointer;
+  // Translated text, before control strings are replaced.
+  public String text;
+  // Line of the script where this element starts.
+  public int line;
+
+  public TextEntry (String pointerStr, String text, int line) throws XMLError {
+    this.pointerStr = pointerStr;
+    this.pointer = XMLHelper.parseInt(pointerStr, 16, "pointer", line);
+    this.text = text;
+    this.line = line;
+  }
+}
@@ -1,95 +1,50 @@
-import java.util.*;
 
-// Contains an array of strings.
+// One line of in-game text: a range of the expanded text held by its TextBlock.
+// Words on a line are separated by exactly one space in the source, so a line
+// is always a contiguous range and never needs its own copy of the bytes.
 public class TextLine {
-  ArrayList<String> line;
-  // space is 0 for first string, 1 for subsequent strings. It controls whether to append
-  // a " " when adding a string.
-  // MAX is constant 28.
-  int space, MAX; 
+  // Range of the expanded text covered by this line.
+  int start, end;
+  // In-game width of the line, including spaces between words.
+  int width;
+  // space is 0 for first string, 1 for subsequent strings. It controls whether
+  // a " " comes before the next string.
+  int space;
   
 // -------------------------------------------------------------------  
 
   TextLine() {
-    line = new ArrayList<String>();
-    space = 0;
-    MAX = 28;
-  }
-  
-// -------------------------------------------------------------------  
-
-// Returns in-game length of given string in bytes. Special case: "@NAME@" has length 8.
-  int getLength(String s) {
-    int numNames = 0;
-    int last = s.lastIndexOf(ControlString.name);
-    int current = s.indexOf(ControlString.name);
-    while (current >= 0 && current <= last) {
-      numNames++;
-      current = s.indexOf(ControlString.name, current + 1);
-    }
-  
-    // control bytes of @NAME@ has 6 bytes, but it should have length 8
-    return s.length() + numNames * 2; 
-  }
-
-// -------------------------------------------------------------------  
-
-// Returns whether adding s to the array will make the total length exceed MAX.
-// s is not actually added.
-  boolean fit(String s) {
-    return (len() + space + getLength(s) <= MAX);
+    clear();
   }
   
 // -------------------------------------------------------------------  
 
-// Returns the sum of getLength() of all stored strings. This is the size this TextLine
-// takes in game's ROM.
-  int len() {
-    int l = 0;
-    
-    for (String s : line)
-      l += getLength(s);
-      
-    return l;  
+// Empties the line, so it can be reused for another text.
+  void clear() {
+    start = end = 0;
+    width = 0;
+    space = 0;
   }
   
 // -------------------------------------------------------------------  
 
-// Adds s to the stored strings. If s is not the first string, " " will be added before it.
-  void add(String s) {
+// Adds the word [wordStart, wordEnd) of given width. If it is not the first word,
+// the " " before it is added as well, gap wide.
+  void add(int wordStart, int wordEnd, int wordWidth, int gap) {
     if (space > 0) 
-      line.add(" ");
-    line.add(s);
+      width += gap;
+    else
+      start = wordStart;
+    end = wordEnd;
+    width += wordWidth;
     space = 1;
   }
-  
-// -------------------------------------------------------------------  
-
-// Concatenates all strings and returns as one StringBuffer.
-  StringBuffer flush() {
-    StringBuffer out = new StringBuffer();
-    
-    for (String s : line)
-      out.append(s);
-      
-    return out;
-  }
 
 // -------------------------------------------------------------------  
 
-// Converts all characters in all strings to in-game bytes, and returns them as an array.
-// "@NAME"s are converted to a special 6-byte sequence.
-  ArrayList<Integer> getBuffer() {
-    ArrayList<Integer> buffer = new ArrayList<Integer>();
-
-    for (String s : line) {
-      for (int i = 0; i < s.length(); i++)
-        buffer.add(s.charAt(i) & 0xFF);
-    }
-    
-    return buffer;
+// Size of this line in ROM, in bytes.
+  int size() {
+    return end - start;
   }
-
-// -------------------------------------------------------------------  
   
 }
@@ -0,0 +1,66 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Encodes <text>s on the common fork-join pool while they are still being read,
+// and writes them into the ROM one at a time in document order. Only writing
+// needs ordering: whether a text fits in place depends on what was written
+// before it. Texts that don't fit are placed after the last entry, by
+// Target.placeRelocated. So the output is the same as encoding one entry at
+// a time.
+public class TextPipeline {
+  // Entries in flight; bounds memory use when reading large scripts.
+  static final int WINDOW = 1024;
+  ArrayDeque<ForkJoinTask<EncodedText>> pending = new ArrayDeque<ForkJoinTask<EncodedText>>();
+
+// -------------------------------------------------------------------
+
+// Starts encoding t, writing older entries if too many are waiting.
+  void submit (final TextEntry t) throws XMLError {
+    pending.add(ForkJoinPool.commonPool().submit(new Callable<EncodedText>() {
+      public EncodedText call () throws XMLError {
+        return Script.encodeText(t);
+      }
+    }));
+    if (pending.size() >= WINDOW)
+      commit();
+  }
+
+// -------------------------------------------------------------------
+
+// Waits for the oldest entry and writes it.
+  void commit () throws XMLError {
+    EncodedText e;
+    try {
+      e = pending.remove().get();
+    } catch (InterruptedException ie) {
+      throw new XMLError ("Interrupted while encoding text");
+    } catch (ExecutionException ee) {
+      throw unwrap(ee);
+    }
+    if (e != null)
+      Script.target.writeText(e);
+  }
+
+// -------------------------------------------------------------------
+
+// Writes every pending entry.
+  void drain () throws XMLError {
+    while (!pending.isEmpty())
+      commit();
+  }
+
+// -------------------------------------------------------------------
+
+// The fork-join pool wraps checked exceptions in RuntimeExceptions: dig out the
+// XMLError thrown by the encoder, if any.
+  static XMLError unwrap (ExecutionException ee) {
+    Throwable cause = ee.getCause();
+    while (cause instanceof RuntimeException && cause.getCause() != null)
+      cause = cause.getCause();
+    if (cause instanceof XMLError)
+      return (XMLError)cause;
+    if (cause instanceof RuntimeException)
+      throw (RuntimeException)cause;
+    return new XMLError (cause.toString());
+  }
+}
@@ -0,0 +1,208 @@
+import java.awt.image.*;
+
+// Converts between GBA tiles and indexed images, one tile row at a time.
+// A tile is 8x8 pixels. At 4bpp a tile row is one 32-bit word with the left
+// pixel in the low nibble of each byte; at 8bpp it is 8 bytes, one per pixel.
+// Tiles are kept in a linear array, tile (tx, ty) at ty*width + tx, and mapped
+// to ROM either the same way (1D layout) or as rows of a sheet that is STRIDE
+// tiles wide (2D layout, as sprites use in VRAM). Flips mirror the whole image.
+public class TileCodec {
+  // Width of a 2D sheet in tiles, at 4bpp. At 8bpp it's half that.
+  static final int STRIDE = 32;
+
+  // Size in tiles.
+  int width, height;
+  int bpp;
+  boolean layout2d, hflip, vflip;
+
+// -------------------------------------------------------------------
+
+  TileCodec (GraphicEntry g) {
+    width = g.width;
+    height = g.height;
+    bpp = g.bpp;
+    layout2d = g.layout2d;
+    hflip = g.hflip;
+    vflip = g.vflip;
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes per tile.
+  int tileSize () {
+    return bpp * 8;
+  }
+
+// -------------------------------------------------------------------
+
+// Bytes of all tiles.
+  int size () {
+    return width * height * tileSize();
+  }
+
+// -------------------------------------------------------------------
+
+// Address in ROM of the first tile of tile row ty, for tiles starting at addr.
+// Each tile row is width*tileSize() contiguous bytes.
+  int rowAddress (int addr, int ty) {
+    int stride = layout2d ? STRIDE * 4 / bpp : width;
+    return addr + ty * stride * tileSize();
+  }
+
+// -------------------------------------------------------------------
+
+// Reads all tiles starting at addr.
+  byte[] read (RomImage rom, int addr) {
+    byte[] tiles = new byte[size()];
+    int rowSize = width * tileSize();
+    for (int ty = 0; ty < height; ty++)
+      rom.read(rowAddress(addr, ty), tiles, ty * rowSize, rowSize);
+    return tiles;
+  }
+
+// -------------------------------------------------------------------
+
+// Writes all tiles starting at addr.
+  void write (RomImage rom, int addr, byte[] tiles) {
+    int rowSize = width * tileSize();
+    for (int ty = 0; ty < height; ty++)
+      rom.write(rowAddress(addr, ty), tiles, ty * rowSize, rowSize);
+  }
+
+// -------------------------------------------------------------------
+
+// Pixel row of the image that holds row y of the tiles.
+  int imageRow (int y) {
+    return vflip ? height * 8 - 1 - y : y;
+  }
+
+// -------------------------------------------------------------------
+
+// Swaps the nibbles of all four bytes of v.
+  static int swapNibbles (int v) {
+    return ((v & 0x0f0f0f0f) << 4) | ((v >>> 4) & 0x0f0f0f0f);
+  }
+
+// -------------------------------------------------------------------
+
+// Creates an image with palette and draws tiles on it. 4bpp tiles give a
+// packed 4-bit image, 8bpp tiles an 8-bit one.
+  BufferedImage decode (byte[] tiles, IndexColorModel palette) {
+    BufferedImage image = new BufferedImage(width * 8, height * 8,
+      bpp == 4 ? BufferedImage.TYPE_BYTE_BINARY : BufferedImage.TYPE_BYTE_INDEXED, palette);
+    WritableRaster raster = image.getRaster();
+    byte[] pixels = ((DataBufferByte)raster.getDataBuffer()).getData();
+    int stride = bpp == 4 ? ((MultiPixelPackedSampleModel)raster.getSampleModel()).getScanlineStride()
+                          : ((ComponentSampleModel)raster.getSampleModel()).getScanlineStride();
+    int rowBytes = bpp;  // bytes of one tile row, in tiles and in pixels alike
+
+    for (int ty = 0; ty < height; ty++)
+      for (int tx = 0; tx < width; tx++)
+        for (int j = 0; j < 8; j++) {
+          int src = (ty * width + tx) * tileSize() + j * rowBytes;
+          int x = hflip ? width - 1 - tx : tx;
+          int dst = imageRow(ty * 8 + j) * stride + x * rowBytes;
+          if (bpp == 4) {
+            int v = (tiles[src] & 0xFF) | (tiles[src + 1] & 0xFF) << 8 |
+                    (tiles[src + 2] & 0xFF) << 16 | (tiles[src + 3] & 0xFF) << 24;
+            // Packed images keep the left pixel in the high nibble. Mirroring a
+            // row reverses its bytes, and that already puts it there.
+            if (hflip)
+              v = Integer.reverseBytes(v);
+            else
+              v = swapNibbles(v);
+            pixels[dst] = (byte)v;
+            pixels[dst + 1] = (byte)(v >> 8);
+            pixels[dst + 2] = (byte)(v >> 16);
+            pixels[dst + 3] = (byte)(v >> 24);
+          } else {
+            for (int i = 0; i < 8; i++)
+              pixels[dst + (hflip ? 7 - i : i)] = tiles[src + i];
+          }
+        }
+
+    return image;
+  }
+
+// -------------------------------------------------------------------
+
+// Converts image to tiles. Packed 4-bit and 8-bit indexed images are read
+// straight from their backing arrays; anything else goes through the raster
+// one pixel row at a time. At 4bpp only the low 4 bits of each pixel are kept.
+  byte[] encode (BufferedImage image) {
+    byte[] tiles = new byte[size()];
+    WritableRaster raster = image.getRaster();
+    SampleModel model = raster.getSampleModel();
+    boolean direct = raster.getDataBuffer() instanceof DataBufferByte &&
+                     raster.getParent() == null;
+    int mask = bpp == 4 ? 0xf : 0xff;
+
+    if (direct && model instanceof MultiPixelPackedSampleModel &&
+        ((MultiPixelPackedSampleModel)model).getPixelBitStride() == 4 && bpp == 4) {
+      // Packed 4-bit: one 32-bit word per tile row.
+      byte[] pixels = ((DataBufferByte)raster.getDataBuffer()).getData();
+      int stride = ((MultiPixelPackedSampleModel)model).getScanlineStride();
+      for (int ty = 0; ty < height; ty++)
+        for (int tx = 0; tx < width; tx++)
+          for (int j = 0; j < 8; j++) {
+            int x = hflip ? width - 1 - tx : tx;
+            int src = imageRow(ty * 8 + j) * stride + x * 4;
+            int dst = (ty * width + tx) * tileSize() + j * 4;
+            int v = (pixels[src] & 0xFF) | (pixels[src + 1] & 0xFF) << 8 |
+                    (pixels[src + 2] & 0xFF) << 16 | (pixels[src + 3] & 0xFF) << 24;
+            v = hflip ? Integer.reverseBytes(v) : swapNibbles(v);
+            tiles[dst] = (byte)v;
+            tiles[dst + 1] = (byte)(v >> 8);
+            tiles[dst + 2] = (byte)(v >> 16);
+            tiles[dst + 3] = (byte)(v >> 24);
+          }
+      return tiles;
+    }
+
+    if (direct && model instanceof PixelInterleavedSampleModel &&
+        ((PixelInterleavedSampleModel)model).getPixelStride() == 1) {
+      // 8-bit indexed: one byte per pixel.
+      byte[] pixels = ((DataBufferByte)raster.getDataBuffer()).getData();
+      int stride = ((PixelInterleavedSampleModel)model).getScanlineStride();
+      for (int ty = 0; ty < height; ty++)
+        for (int j = 0; j < 8; j++) {
+          int row = imageRow(ty * 8 + j) * stride;
+          for (int tx = 0; tx < width; tx++)
+            encodeRow(pixels, row, tx, tiles, (ty * width + tx) * tileSize() + j * bpp, mask);
+        }
+      return tiles;
+    }
+
+    // Anything else: fetch one pixel row at a time.
+    int[] row = new int[width * 8];
+    byte[] pixels = new byte[width * 8];
+    for (int ty = 0; ty < height; ty++)
+      for (int j = 0; j < 8; j++) {
+        raster.getSamples(0, imageRow(ty * 8 + j), width * 8, 1, 0, row);
+        for (int i = 0; i < row.length; i++)
+          pixels[i] = (byte)row[i];
+        for (int tx = 0; tx < width; tx++)
+          encodeRow(pixels, 0, tx, tiles, (ty * width + tx) * tileSize() + j * bpp, mask);
+      }
+    return tiles;
+  }
+
+// -------------------------------------------------------------------
+
+// Encodes the 8 pixels of tile column tx from a row of one byte per pixel
+// starting at pixels[row] into tiles[dst].
+  void encodeRow (byte[] pixels, int row, int tx, byte[] tiles, int dst, int mask) {
+    int x = hflip ? width - 1 - tx : tx;
+    int src = row + x * 8;
+    if (bpp == 4) {
+      for (int i = 0; i < 4; i++) {
+        int left = pixels[src + (hflip ? 7 - i*2 : i*2)] & mask;
+        int right = pixels[src + (hflip ? 6 - i*2 : i*2 + 1)] & mask;
+        tiles[dst + i] = (byte)(left | right << 4);
+      }
+    } else {
+      for (int i = 0; i < 8; i++)
+        tiles[dst + i] = pixels[src + (hflip ? 7 - i : i)];
+    }
+  }
+}
@@ -0,0 +1,156 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Checks a whole script without writing anything. Texts are encoded and
+// images converted in parallel, as insertion does, and then written in
+// document order into a private copy of the ROM, and relocated into its free
+// space. The ROM on disk, the build cache and the output are never touched.
+// A problem doesn't stop the run: each one is collected, with the line of the
+// entry it was found in, and all of them are printed at the end.
+// Besides what insertion rejects, this finds pointers outside the ROM.
+public class Validator implements EntryHandler {
+  // Entries in document order: futures of an EncodedText or a
+  // GraphicPipeline.Job, the start and end of a <free>, or an XMLError for
+  // a problem found while reading, so problems are printed in document order.
+  ArrayList<Object> entries = new ArrayList<Object>();
+  // Only used to find graphics that overlap.
+  GraphicPipeline graphics = new GraphicPipeline();
+  ArrayList<String> problems = new ArrayList<String>();
+  int texts, images;
+
+// -------------------------------------------------------------------
+
+// Checks script filename. Returns how many problems were found.
+  static int run (String filename) throws XMLError {
+    long start = System.nanoTime();
+    Palette.clear();
+    Validator validator = new Validator();
+    ScriptReader.read(filename, validator);
+    for (String problem : validator.problems)
+      System.out.println(problem);
+    System.out.println ("Checked " + validator.texts + " texts and " + validator.images + " graphics in " +
+                        (System.nanoTime() - start) / 1000000 + " ms: " + validator.problems.size() +
+                        " problems.");
+    return validator.problems.size();
+  }
+
+// -------------------------------------------------------------------
+
+// Records the problem in xe.
+  void problem (XMLError xe) {
+    problems.add(xe.getMessage().replaceFirst("^XMLError: ", ""));
+  }
+
+// -------------------------------------------------------------------
+
+// Maps the ROM copy-on-write, so nothing written reaches the file. The build
+// cache of the last insertion is read, to skip texts known to be fine.
+  public void game (String name) throws XMLError {
+    Target target = new Target(name, true, System.out);
+    target.cache = new BuildCache(target.outputName("cache"), target.romCrc);
+    target.problems = problems;
+    Script.target = target;
+  }
+
+// -------------------------------------------------------------------
+
+// A table that can't be read stops the run: every text would fail without it.
+  public void table (String name) throws XMLError {
+    Script.useTable(TableCodec.load(name));
+  }
+
+// -------------------------------------------------------------------
+
+  public void font (FontEntry f) throws XMLError {
+    Script.useFont(FontWidths.read(f, Script.target.gameData));
+  }
+
+// -------------------------------------------------------------------
+
+  public void graphic (final GraphicEntry g) {
+    final GraphicPipeline.Job job = new GraphicPipeline.Job(g);
+    images++;
+    try {
+      graphics.take(job);
+    } catch (XMLError xe) {
+      entries.add(xe);
+      return;
+    }
+    entries.add(GraphicPipeline.workers().submit(new Callable<GraphicPipeline.Job>() {
+      public GraphicPipeline.Job call () throws XMLError {
+        job.tiles = Script.encodeGraphic(g, job.codec);
+        return job;
+      }
+    }));
+  }
+
+// -------------------------------------------------------------------
+
+  public void free (int start, int end) {
+    entries.add(new int[]{start, end});
+  }
+
+// -------------------------------------------------------------------
+
+// Checks where t points before encoding it.
+  public void text (final TextEntry t) {
+    Target target = Script.target;
+    texts++;
+    if (t.pointer < 0 || t.pointer > target.gameData.length() - 4) {
+      entries.add(new XMLError ("Pointer " + t.pointerStr + " of text at line " + t.line + " is outside the ROM"));
+      return;
+    }
+    int address = target.gameData.originalWord(t.pointer) - 0x8000000;
+    if (address < 0 || address >= target.gameData.length()) {
+      entries.add(new XMLError ("Pointer " + t.pointerStr + " of text at line " + t.line +
+                                " points outside the ROM (" +
+                                Integer.toHexString(target.gameData.originalWord(t.pointer)) + ")"));
+      return;
+    }
+    entries.add(ForkJoinPool.commonPool().submit(new Callable<EncodedText>() {
+      public EncodedText call () throws XMLError {
+        return Script.encodeText(t);
+      }
+    }));
+  }
+
+// -------------------------------------------------------------------
+
+// An entry that can't be read is a problem in its place, like the others.
+  public void unreadable (XMLError xe) {
+    entries.add(xe);
+  }
+
+// -------------------------------------------------------------------
+
+// Writes every entry that could be encoded in document order, then places
+// the relocated ones.
+  public void end () throws XMLError {
+    Target target = Script.target;
+    for (Object entry : entries)
+      try {
+        if (entry instanceof int[]) {
+          int[] range = (int[])entry;
+          target.freeSpace.add("declared", range[0], range[1]);
+          continue;
+        }
+        if (entry instanceof XMLError)
+          throw (XMLError)entry;
+        Object done = ((Future<?>)entry).get();
+        if (done instanceof GraphicPipeline.Job) {
+          GraphicPipeline.Job job = (GraphicPipeline.Job)done;
+          if (job.tiles != null)
+            target.writeGraphic(job);
+        } else if (done != null) {
+          target.writeText((EncodedText)done);
+        }
+      } catch (InterruptedException ie) {
+        throw new XMLError ("Interrupted while validating");
+      } catch (ExecutionException ee) {
+        problem(TextPipeline.unwrap(ee));
+      } catch (XMLError xe) {
+        problem(xe);
+      }
+    target.placeRelocated();
+  }
+}
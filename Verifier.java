@@ -0,0 +1,329 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Checks that the patched ROM holds what the script says, without extracting
+// anything. Both ROMs are mapped, and every pointer of the script is followed
+// in the patched one: the string found there must be the text as insertion
+// encodes it, and each graphic must match its image tile by tile. Entries are
+// checked in parallel, and problems are printed in document order.
+// Then both ROMs are compared, in parallel chunks, and every change outside of
+// what the script accounts for is a problem too. The script accounts for its
+// pointers and what they point to, the original strings and their other
+// pointers, its graphics, and free space.
+public class Verifier implements EntryHandler {
+  // Bytes of the ROMs compared by one task.
+  static final int CHUNK = 1 << 20;
+  // Changes outside the script that are printed one by one.
+  static final int SHOWN = 20;
+
+  // What checking one entry found.
+  static class Check {
+    // Pointer of the <text>, or -1 for a graphic.
+    int pointer = -1;
+    String problem;
+    // Ranges the entry accounts for, in the patched ROM.
+    ArrayList<int[]> ranges = new ArrayList<int[]>();
+
+    void add (int start, int end) {
+      ranges.add(new int[]{start, end});
+    }
+  }
+
+  // Entries in document order: futures of a Check, or a Check found while reading.
+  ArrayList<Object> entries = new ArrayList<Object>();
+  // Index in entries of the last <text> with each pointer: only that one is in the ROM.
+  HashMap<Integer, Integer> last = new HashMap<Integer, Integer>();
+  ArrayList<String> problems = new ArrayList<String>();
+  // Ranges changed outside anything the script writes.
+  ArrayList<int[]> outside = new ArrayList<int[]>();
+  RomImage patched;
+  String patchedName;
+  int texts, images;
+
+// -------------------------------------------------------------------
+
+// Verifies the patched ROM of script filename. Returns how many problems were found.
+  static int run (String filename) throws XMLError {
+    long start = System.nanoTime();
+    Palette.clear();
+    Verifier verifier = new Verifier();
+    ScriptReader.read(filename, verifier);
+    for (String problem : verifier.problems)
+      System.out.println(problem);
+    for (int i = 0; i < verifier.outside.size() && i < SHOWN; i++)
+      System.out.println("Bytes " + Integer.toHexString(verifier.outside.get(i)[0]) + "-" +
+                         Integer.toHexString(verifier.outside.get(i)[1] - 1) +
+                         " changed, outside anything the script writes");
+    if (verifier.outside.size() > SHOWN)
+      System.out.println("... and " + (verifier.outside.size() - SHOWN) + " more changes outside the script");
+    int total = verifier.problems.size() + verifier.outside.size();
+    System.out.println ("Verified " + verifier.texts + " texts and " + verifier.images + " graphics in <" +
+                        verifier.patchedName + "> in " + (System.nanoTime() - start) / 1000000 + " ms: " +
+                        total + " problems.");
+    return total;
+  }
+
+// -------------------------------------------------------------------
+
+// Maps the original ROM, and the patched one insertion wrote next to it.
+  public void game (String name) throws XMLError {
+    Target target = new Target(name, false, System.out);
+    Script.target = target;
+    patchedName = target.outputName(null);
+    patched = new RomImage(patchedName, false);
+    if (patched.length() != target.gameData.length())
+      throw new XMLError ("<" + patchedName + "> is " + patched.length() + " bytes, <" + name + "> is " +
+                          target.gameData.length());
+  }
+
+// -------------------------------------------------------------------
+
+  public void table (String name) throws XMLError {
+    Script.useTable(TableCodec.load(name));
+  }
+
+// -------------------------------------------------------------------
+
+  public void font (FontEntry f) throws XMLError {
+    Script.useFont(FontWidths.read(f, Script.target.gameData));
+  }
+
+// -------------------------------------------------------------------
+
+  public void graphic (final GraphicEntry g) {
+    images++;
+    entries.add(GraphicPipeline.workers().submit(new Callable<Check>() {
+      public Check call () throws XMLError {
+        return checkGraphic(g);
+      }
+    }));
+  }
+
+// -------------------------------------------------------------------
+
+  public void free (int start, int end) {
+    Script.target.freeSpace.add("declared", start, end);
+  }
+
+// -------------------------------------------------------------------
+
+  public void text (final TextEntry t) {
+    texts++;
+    if (t.pointer < 0 || t.pointer > Script.target.gameData.length() - 4) {
+      Check check = new Check();
+      check.problem = "Pointer " + t.pointerStr + " of text at line " + t.line + " is outside the ROM";
+      entries.add(check);
+      return;
+    }
+    last.put(t.pointer, entries.size());
+    entries.add(ForkJoinPool.commonPool().submit(new Callable<Check>() {
+      public Check call () throws XMLError {
+        return checkText(t);
+      }
+    }));
+  }
+
+// -------------------------------------------------------------------
+
+// An entry that can't be read is a problem in its place, like the others.
+  public void unreadable (XMLError xe) {
+    Check check = new Check();
+    check.problem = xe.getMessage().replaceFirst("^XMLError: ", "");
+    entries.add(check);
+  }
+
+// -------------------------------------------------------------------
+
+// Follows the pointer of t in the patched ROM, and compares the string there
+// with t as insertion encodes it. An empty text must still point to its
+// original string.
+  Check checkText (TextEntry t) throws XMLError {
+    Target target = Script.target;
+    Check check = new Check();
+    check.pointer = t.pointer;
+    check.add(t.pointer, t.pointer + 4);
+    int original = target.readAddressFrom(t.pointer);
+    if (original < 0 || original >= target.gameData.length()) {
+      check.problem = "Pointer " + t.pointerStr + " of text at line " + t.line + " points outside the ROM";
+      return check;
+    }
+
+    byte[] expected;
+    EncodedText e = Script.encodeText(t);
+    if (e != null) {
+      expected = e.bytes;
+      // Insertion may write over the original string and its unused tail, and
+      // moves other pointers to it.
+      check.add(original, original + Math.max(target.room(original), target.originalLength(original) + 1));
+      for (int p : target.pointers.pointersTo(original))
+        check.add(p, p + 4);
+    } else {
+      expected = new byte[target.originalLength(original) + 1];
+      target.gameData.read(original, expected, 0, expected.length);
+    }
+
+    int address = patched.readWord(t.pointer) - 0x8000000;
+    if (address < 0 || address > patched.length() - expected.length) {
+      check.problem = "Pointer " + t.pointerStr + " of text at line " + t.line + " points outside <" +
+                      patchedName + "> (" + Integer.toHexString(address + 0x8000000) + ")";
+      return check;
+    }
+    check.add(address, address + expected.length);
+    byte[] found = new byte[expected.length];
+    patched.read(address, found, 0, found.length);
+    if (!Arrays.equals(found, expected))
+      check.problem = "Text at line " + t.line + " reads \"" + ScriptWriter.decode(string(patched, address)) +
+                      "\" instead of \"" + ScriptWriter.decode(Arrays.copyOf(expected, expected.length - 1)) + "\"";
+    return check;
+  }
+
+// -------------------------------------------------------------------
+
+// The string at addr in rom, without its terminator.
+  static byte[] string (RomImage rom, int addr) {
+    int end = addr;
+    while (end < rom.length() && rom.read(end) != 0)
+      end++;
+    byte[] bytes = new byte[end - addr];
+    rom.read(addr, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+// -------------------------------------------------------------------
+
+// Compares the tiles of g in the patched ROM with its image. Compressed tiles
+// are compared after decompression, wherever their pointer moved them.
+// A graphic without an image wasn't inserted, and isn't checked.
+  Check checkGraphic (GraphicEntry g) throws XMLError {
+    Check check = new Check();
+    TileCodec codec = new TileCodec(g);
+    byte[] tiles = Script.encodeGraphic(g, codec);
+    if (tiles == null)
+      return check;
+
+    byte[] expected, found;
+    if (g.compression == 0) {
+      for (int ty = 0; ty < g.height; ty++)
+        check.add(codec.rowAddress(g.addr, ty), codec.rowAddress(g.addr, ty) + g.width * codec.tileSize());
+      expected = tiles;
+      found = codec.read(patched, g.addr);
+    } else {
+      check.add(g.addr, g.addr + Compression.compressedSize(Script.target.gameData, g.addr));
+      int address = g.addr;
+      if (g.pointer >= 0) {
+        check.add(g.pointer, g.pointer + 4);
+        address = patched.readWord(g.pointer) - 0x8000000;
+      }
+      check.add(address, address + tiles.length);
+      expected = Compression.decompress(new RomImage(tiles), 0, false);
+      try {
+        found = Compression.decompress(patched, address, false);
+      } catch (XMLError | IndexOutOfBoundsException fe) {
+        check.problem = "Graphic at line " + g.line + " has no compressed tiles at " +
+                        Integer.toHexString(address) + " in <" + patchedName + ">";
+        return check;
+      }
+    }
+
+    int size = codec.tileSize(), count = expected.length / size, differ = 0, first = -1;
+    for (int i = 0; i < count; i++)
+      if ((i + 1) * size > found.length ||
+          !Arrays.equals(expected, i * size, (i + 1) * size, found, i * size, (i + 1) * size)) {
+        if (first < 0)
+          first = i;
+        differ++;
+      }
+    if (differ > 0)
+      check.problem = "Graphic at line " + g.line + " differs from <graphics/_" + g.name + ".bmp> in " +
+                      differ + " of " + count + " tiles, first at tile (" + first % g.width + ", " +
+                      first / g.width + ")";
+    return check;
+  }
+
+// -------------------------------------------------------------------
+
+// Collects the checks in document order, then looks for changes outside the script.
+  public void end () throws XMLError {
+    Target target = Script.target;
+    int length = patched.length();
+    final BitSet known = new BitSet(length);
+    for (Map.Entry<Integer, Integer> r : target.freeSpace.free.entrySet())
+      known.set(Math.max(r.getKey(), 0), Math.min(r.getValue(), length));
+
+    for (int i = 0; i < entries.size(); i++) {
+      Check check;
+      try {
+        Object entry = entries.get(i);
+        check = entry instanceof Check ? (Check)entry : (Check)((Future<?>)entry).get();
+      } catch (InterruptedException ie) {
+        throw new XMLError ("Interrupted while verifying");
+      } catch (ExecutionException ee) {
+        problems.add(TextPipeline.unwrap(ee).getMessage().replaceFirst("^XMLError: ", ""));
+        continue;
+      }
+      for (int[] r : check.ranges)
+        if (r[0] < r[1])
+          known.set(Math.max(r[0], 0), Math.min(r[1], length));
+      // An earlier text with the same pointer was overwritten by this one.
+      if (check.problem != null && (check.pointer < 0 || last.get(check.pointer) == i))
+        problems.add(check.problem);
+    }
+
+    outside = changes(target.gameData.data, patched.data, known, length);
+  }
+
+// -------------------------------------------------------------------
+
+// Ranges where a and b differ outside known, compared in parallel chunks.
+  static ArrayList<int[]> changes (final ByteBuffer a, final ByteBuffer b, final BitSet known, int length)
+      throws XMLError {
+    ArrayList<Future<ArrayList<int[]>>> chunks = new ArrayList<Future<ArrayList<int[]>>>();
+    for (int start = 0; start < length; start += CHUNK) {
+      final int from = start, to = Math.min(start + CHUNK, length);
+      chunks.add(ForkJoinPool.commonPool().submit(new Callable<ArrayList<int[]>>() {
+        public ArrayList<int[]> call () {
+          return changes(a, b, known, from, to);
+        }
+      }));
+    }
+
+    // Ranges that run across chunks are joined.
+    ArrayList<int[]> ranges = new ArrayList<int[]>();
+    try {
+      for (Future<ArrayList<int[]>> chunk : chunks)
+        for (int[] r : chunk.get())
+          if (ranges.size() > 0 && ranges.get(ranges.size() - 1)[1] == r[0])
+            ranges.get(ranges.size() - 1)[1] = r[1];
+          else
+            ranges.add(r);
+    } catch (InterruptedException ie) {
+      throw new XMLError ("Interrupted while verifying");
+    } catch (ExecutionException ee) {
+      throw TextPipeline.unwrap(ee);
+    }
+    return ranges;
+  }
+
+// -------------------------------------------------------------------
+
+// Ranges in [from, to) where a and b differ outside known. Equal stretches
+// are skipped with ByteBuffer.mismatch.
+  static ArrayList<int[]> changes (ByteBuffer a, ByteBuffer b, BitSet known, int from, int to) {
+    ArrayList<int[]> ranges = new ArrayList<int[]>();
+    int i = from;
+    while (i < to) {
+      int m = a.slice(i, to - i).mismatch(b.slice(i, to - i));
+      if (m < 0)
+        break;
+      for (i += m; i < to && a.get(i) != b.get(i); i++)
+        if (!known.get(i)) {
+          if (ranges.size() > 0 && ranges.get(ranges.size() - 1)[1] == i)
+            ranges.get(ranges.size() - 1)[1] = i + 1;
+          else
+            ranges.add(new int[]{i, i + 1});
+        }
+    }
+    return ranges;
+  }
+}
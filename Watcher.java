@@ -0,0 +1,77 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+// Watch mode: inserts the script, then inserts it again every time the script
+// or an image in graphics/ is saved. The rom stays mapped and every encoded
+// entry stays in the build cache between runs, so a run only encodes what
+// changed and the JVM, rom and control strings are set up once per session.
+public class Watcher {
+  // Saves often come as several events: wait this long for the last one.
+  static final int SETTLE_MS = 20;
+
+// -------------------------------------------------------------------
+
+// Runs until killed. Errors are reported, and the next save tries again.
+  static void watch (String filename) {
+    Path script = Paths.get(filename).toAbsolutePath();
+    Path graphics = Paths.get("graphics").toAbsolutePath();
+
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      script.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                  StandardWatchEventKinds.ENTRY_MODIFY);
+      if (Files.isDirectory(graphics))
+        graphics.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                          StandardWatchEventKinds.ENTRY_MODIFY);
+
+      rebuild(filename);
+      while (true) {
+        boolean changed = false;
+        WatchKey key = watcher.take();
+        do {
+          changed |= isInput(key, script, graphics);
+          key.reset();
+        } while ((key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null);
+        if (changed)
+          rebuild(filename);
+      }
+    } catch (IOException ioe) {
+      System.err.println("Can't watch <" + filename + ">: " + ioe.getMessage());
+    } catch (InterruptedException ie) {
+    }
+  }
+
+// -------------------------------------------------------------------
+
+// Returns whether any event of key is about the script or an image.
+// Our own output lands next to the script too, and is ignored.
+  static boolean isInput (WatchKey key, Path script, Path graphics) {
+    boolean input = false;
+    Path dir = (Path)key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        input = true;
+        continue;
+      }
+      Path file = dir.resolve((Path)event.context());
+      if (file.equals(script) ||
+          (dir.equals(graphics) && file.toString().toLowerCase().endsWith(".bmp")))
+        input = true;
+    }
+    return input;
+  }
+
+// -------------------------------------------------------------------
+
+  static void rebuild (String filename) {
+    long start = System.nanoTime();
+    try {
+      Script.run(filename);
+      System.out.println ("Rebuilt in " + (System.nanoTime() - start) / 1000000 + " ms.");
+    } catch (XMLError xe) {
+      System.err.println(xe.getMessage());
+    } catch (RuntimeException re) {
+      re.printStackTrace();
+    }
+  }
+}